@@ -0,0 +1,244 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bench;
+
+import algorithms.BST;
+import algorithms.HashKeySet;
+import algorithms.LongLongMap;
+import algorithms.RWLockTreeSet;
+import algorithms.SkipListSet;
+import algorithms.StampedTreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import main.BSTInterface;
+import main.LongMapAdapter;
+import main.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for the BSTInterface implementations.  Every benchmark
+ * returns the result of the tree operation, so JMH consumes it and the JIT
+ * cannot eliminate the call.
+ *
+ * Single-operation benchmarks measure contains, insert and remove in
+ * isolation on a tree prefilled to half the key range.  The mixed benchmark
+ * draws operations with the same probabilities as the harness (-ins, -del),
+ * and the @Group scenarios dedicate threads to each operation type in the
+ * proportions of common harness ratios.
+ *
+ * Run, for example, with the GC and allocation profilers:
+ *
+ *     java -jar jmh/target/benchmarks.jar -prof gc -p impl=BST -t 8
+ *
+ * The JDK baselines (SkipList, CHMKeySet, RWLockTreeSet, StampedTreeSet) are
+ * available with -p impl=...
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+UseParallelGC", "-Xms4G", "-Xmx4G"})
+public class BSTBenchmark {
+
+    /** creates the implementation named by the impl parameter. **/
+    static BSTInterface create(final String impl, final int keyRange) {
+        if (impl.equals("BST")) return new BST();
+        if (impl.equals("LongMap")) return new LongMapAdapter(new LongLongMap(), keyRange, 8);
+        if (impl.equals("SkipList")) return new SkipListSet();
+        if (impl.equals("CHMKeySet")) return new HashKeySet();
+        if (impl.equals("RWLockTreeSet")) return new RWLockTreeSet();
+        if (impl.equals("StampedTreeSet")) return new StampedTreeSet();
+        throw new IllegalArgumentException("unknown implementation " + impl);
+    }
+
+    /**
+     * A tree shared by all benchmark threads, prefilled (like the harness's
+     * -prefill) to half the key range before each trial.
+     */
+    @State(Scope.Benchmark)
+    public static class TreeState {
+        @Param({"BST", "LongMap"})
+        public String impl;
+
+        @Param({"1000", "1000000"})
+        public int keyRange;
+
+        BSTInterface tree;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            tree = create(impl, keyRange);
+            final Random rng = new Random(main.Globals.DEFAULT_SEED);
+            int size = 0;
+            while (size < keyRange/2) {
+                if (tree.insert(rng.nextNatural(keyRange)+1)) ++size;
+            }
+        }
+    }
+
+    /**
+     * Per-thread random number generator, seeded differently for each thread.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private static final AtomicInteger nextSeed = new AtomicInteger(main.Globals.DEFAULT_SEED);
+        Random rng;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            rng = new Random(nextSeed.incrementAndGet() * 0x9E3779B9);
+        }
+
+        int nextKey(final TreeState s) {
+            return rng.nextNatural(s.keyRange)+1;
+        }
+    }
+
+    /**
+     * Operation mix for the mixed benchmark, in percent (the rest are searches).
+     */
+    @State(Scope.Benchmark)
+    public static class RatioState {
+        @Param({"0", "20", "50"})
+        public int ins;
+
+        @Param({"0", "20", "50"})
+        public int del;
+
+        int insThreshold, delThreshold;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            if (ins + del > 100) throw new IllegalArgumentException("ins + del must be at most 100");
+            insThreshold = (int) (ins / 100. * Integer.MAX_VALUE);
+            delThreshold = (int) ((ins + del) / 100. * Integer.MAX_VALUE);
+        }
+    }
+
+    // ---------------- single operations ----------------
+    // (insert and remove alone drive the tree towards full or empty, so long
+    // runs of them mostly measure the unsuccessful path)
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean contains(final TreeState s, final ThreadState t) {
+        return s.tree.contains(t.nextKey(s));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean insert(final TreeState s, final ThreadState t) {
+        return s.tree.insert(t.nextKey(s));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean remove(final TreeState s, final ThreadState t) {
+        return s.tree.remove(t.nextKey(s));
+    }
+
+    // ---------------- the harness workload ----------------
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public boolean mixed(final TreeState s, final ThreadState t, final RatioState r) {
+        final int key = t.nextKey(s);
+        final int op = t.rng.nextNatural();
+        if (op < r.insThreshold) return s.tree.insert(key);
+        if (op < r.delThreshold) return s.tree.remove(key);
+        return s.tree.contains(key);
+    }
+
+    // ---------------- update-heavy: 50i-50d ----------------
+
+    @Benchmark
+    @Group("updates")
+    @GroupThreads(1)
+    public boolean updatesInsert(final TreeState s, final ThreadState t) {
+        return s.tree.insert(t.nextKey(s));
+    }
+
+    @Benchmark
+    @Group("updates")
+    @GroupThreads(1)
+    public boolean updatesRemove(final TreeState s, final ThreadState t) {
+        return s.tree.remove(t.nextKey(s));
+    }
+
+    // ---------------- balanced: 20i-20d, 60% searches ----------------
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(1)
+    public boolean balancedInsert(final TreeState s, final ThreadState t) {
+        return s.tree.insert(t.nextKey(s));
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(1)
+    public boolean balancedRemove(final TreeState s, final ThreadState t) {
+        return s.tree.remove(t.nextKey(s));
+    }
+
+    @Benchmark
+    @Group("balanced")
+    @GroupThreads(3)
+    public boolean balancedContains(final TreeState s, final ThreadState t) {
+        return s.tree.contains(t.nextKey(s));
+    }
+
+    // ---------------- read-mostly: 10i-10d, 80% searches ----------------
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public boolean readMostlyInsert(final TreeState s, final ThreadState t) {
+        return s.tree.insert(t.nextKey(s));
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public boolean readMostlyRemove(final TreeState s, final ThreadState t) {
+        return s.tree.remove(t.nextKey(s));
+    }
+
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(8)
+    public boolean readMostlyContains(final TreeState s, final ThreadState t) {
+        return s.tree.contains(t.nextKey(s));
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bench;
+
+import algorithms.LongLongMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import main.LongMapInterface;
+import main.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ceilingKey and floorKey of LongLongMap, racing with puts and removes,
+ * and checked as they run.  Every ANCHOR_GAP-th key is an anchor: it is put
+ * before the trial and never removed, so a linearizable ceilingKey(k) can
+ * never return more than the first anchor >= k, nor floorKey(k) less than
+ * the last anchor <= k.  A result past its anchor throws, which fails the
+ * benchmark.  The updaters put and remove only the other keys.
+ *
+ *     java -jar jmh/target/benchmarks.jar NavigationBenchmark -p keyRange=1000
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+UseParallelGC", "-Xms4G", "-Xmx4G"})
+public class NavigationBenchmark {
+    static final int ANCHOR_GAP = 2; // (the successor of every removed key is then an anchor, so every missed successor shows)
+
+    @State(Scope.Benchmark)
+    public static class MapState {
+        @Param({"1000", "1000000"})
+        public int keyRange;
+
+        LongLongMap map;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            map = new LongLongMap();
+            for (long key=0; key<=keyRange+ANCHOR_GAP; key+=ANCHOR_GAP) map.put(key, key); // (anchors beyond both ends of the range)
+            final Random rng = new Random(main.Globals.DEFAULT_SEED);
+            for (int i=0;i<keyRange/2;i++) {
+                final long key = rng.nextNatural(keyRange)+1;
+                if (key % ANCHOR_GAP != 0) map.put(key, key);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private static final AtomicInteger nextSeed = new AtomicInteger(main.Globals.DEFAULT_SEED);
+        Random rng;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            rng = new Random(nextSeed.incrementAndGet() * 0x9E3779B9);
+        }
+    }
+
+    @Benchmark
+    @Group("navigate")
+    @GroupThreads(2)
+    public long update(final MapState s, final ThreadState t) {
+        long key = t.rng.nextNatural(s.keyRange)+1;
+        if (key % ANCHOR_GAP == 0) ++key;
+        return (t.rng.nextNatural() & 1) == 0 ? s.map.put(key, key) : s.map.remove(key);
+    }
+
+    @Benchmark
+    @Group("navigate")
+    @GroupThreads(1)
+    public long ceiling(final MapState s, final ThreadState t) {
+        final long key = t.rng.nextNatural(s.keyRange)+1;
+        final long result = s.map.ceilingKey(key);
+        final long anchor = (key + ANCHOR_GAP-1) / ANCHOR_GAP * ANCHOR_GAP;
+        if (result == LongMapInterface.NO_KEY || result < key || result > anchor) {
+            throw new IllegalStateException("ceilingKey(" + key + ") returned " + result + ", but " + anchor + " was present throughout");
+        }
+        return result;
+    }
+
+    @Benchmark
+    @Group("navigate")
+    @GroupThreads(1)
+    public long floor(final MapState s, final ThreadState t) {
+        final long key = t.rng.nextNatural(s.keyRange)+1;
+        final long result = s.map.floorKey(key);
+        final long anchor = key / ANCHOR_GAP * ANCHOR_GAP;
+        if (result == LongMapInterface.NO_KEY || result > key || result < anchor) {
+            throw new IllegalStateException("floorKey(" + key + ") returned " + result + ", but " + anchor + " was present throughout");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package bench;
+
+import algorithms.BST;
+import java.util.concurrent.TimeUnit;
+import main.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares BST.removeRange with removing the same range one key at a time.
+ * Each invocation purges width keys from the middle of a freshly built tree
+ * that holds every key in [1, keyRange] (inserted in random order), so
+ * this is a single-shot benchmark; the setup is not measured.  Both
+ * benchmarks return the sum of the removed keys.
+ *
+ *     java -jar jmh/target/benchmarks.jar RangeRemoveBenchmark -p width=100,100000
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 200) // (single shots, so many are needed before removeRange is compiled)
+@Measurement(iterations = 50)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+UseParallelGC", "-Xms4G", "-Xmx4G"})
+public class RangeRemoveBenchmark {
+
+    @State(Scope.Thread)
+    public static class TreeState {
+        @Param({"100000"})
+        public int keyRange;
+
+        @Param({"100", "10000"})
+        public int width;
+
+        BST tree;
+        int lo, hi;
+
+        @Setup(Level.Invocation)
+        public void setUp() {
+            tree = new BST();
+            final int[] keys = new int[keyRange];
+            for (int i=0;i<keyRange;i++) keys[i] = i+1;
+            final Random rng = new Random(main.Globals.DEFAULT_SEED);
+            for (int i=keyRange-1;i>0;i--) { // shuffle, so the tree has logarithmic depth
+                final int j = rng.nextNatural(i+1);
+                final int t = keys[i]; keys[i] = keys[j]; keys[j] = t;
+            }
+            for (int key : keys) tree.insert(key);
+            lo = (keyRange - width) / 2 + 1;
+            hi = lo + width - 1;
+        }
+    }
+
+    @Benchmark
+    public long removeRange(final TreeState s) {
+        return s.tree.removeRange(s.lo, s.hi).keysum;
+    }
+
+    @Benchmark
+    public long removeLoop(final TreeState s) {
+        long keysum = 0;
+        for (int key=s.lo; key<=s.hi; key++) {
+            if (s.tree.remove(key)) keysum += key;
+        }
+        return keysum;
+    }
+}
@@ -1,10 +1,20 @@
 package algorithms;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
 import main.BSTInterface;
+import main.CachingTree;
+import main.MeasurableTree;
+import main.RangeRemovableTree;
+import main.RebalancingTree;
+import main.TreeShape;
 
 
-public class BST implements BSTInterface {
+public class BST implements BSTInterface, MeasurableTree, RebalancingTree, RangeRemovableTree, CachingTree {
 
     class Node{
         
@@ -12,6 +22,7 @@ public class BST implements BSTInterface {
         volatile Node right;
         volatile int key;
         volatile boolean marked;
+        volatile boolean replaced; // marked because a copy took its place, so its key is still in the set
         final ReentrantLock lock;
 
         public Node(int key){
@@ -23,20 +34,96 @@ public class BST implements BSTInterface {
 
     private final Node sentinel = new Node(Integer.MAX_VALUE);
 
+    // -------- Lookup cache --------
+    // An optional cache in front of contains, for skewed workloads where a
+    // few keys take most of the lookups.  Each key hashes to a set of one
+    // slot (direct-mapped) or two, and a slot holds a node that a recent
+    // search found.  A hit needs no traversal: the node is still in the
+    // tree if it is not marked, because nodes are marked before they are
+    // unlinked (and rotated nodes are marked when their copies replace
+    // them).  Slots are never locked.  contains fills them after a miss, and
+    // remove clears the ones holding the nodes it removed; a racing fill can
+    // only leave a marked node in a slot, which just causes a miss.
+    private final AtomicReferenceArray<Node> cache; // null if there is no cache
+    private final int cacheWays;   // slots per set (1 or 2)
+    private final int cacheShift;  // the set index is the top bits of the key's hash
+    private final LongAdder cacheHits = new LongAdder();
+
     public BST() {
+        this(0, 1);
+    }
+
+    // With a lookup cache of (about) cacheSlots slots, in sets of cacheWays
+    // (1 or 2) slots, or without one if cacheSlots is 0.
+    public BST(int cacheSlots, int cacheWays) {
+        if (cacheWays != 1 && cacheWays != 2) throw new IllegalArgumentException("cache ways must be 1 or 2");
+        int sets = cacheSlots <= cacheWays ? 1 : Integer.highestOneBit(cacheSlots / cacheWays);
+        this.cache = cacheSlots > 0 ? new AtomicReferenceArray<Node>(sets * cacheWays) : null;
+        this.cacheWays = cacheWays;
+        this.cacheShift = 32 - Integer.numberOfTrailingZeros(sets);
+    }
+
+    // the first slot of key's set
+    private int cacheSet(int key) {
+        return cacheShift == 32 ? 0 : ((key * 0x9E3779B9) >>> cacheShift) * cacheWays;
+    }
+
+    private boolean cacheLookup(int key) {
+        final int set = cacheSet(key);
+        for (int w = 0; w < cacheWays; w++) {
+            Node node = cache.get(set + w);
+            if (node != null && node.key == key && !node.marked) return true;
+        }
+        return false;
+    }
+
+    // The most recently filled node goes into the first slot of the set
+    // (moving its previous node to the second, if there is one).
+    private void cacheFill(int key, Node node) {
+        final int set = cacheSet(key);
+        if (cacheWays > 1) {
+            Node first = cache.get(set);
+            if (first == node) return;
+            if (first != null) cache.lazySet(set + 1, first);
+        }
+        cache.lazySet(set, node);
+    }
+
+    private void cacheInvalidate(Node node) {
+        final int set = cacheSet(node.key);
+        for (int w = 0; w < cacheWays; w++) cache.compareAndSet(set + w, node, null);
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
     }
 
     private Node[] find(int key) {
         Node pred = sentinel; // Start pred as the sentinel
         Node curr = sentinel.left; // The actual tree root is the left child of the sentinel
+        Node lastRight = null; // the last node where the search went right
         
         while (curr != null) {
             if (key == curr.key) return new Node[]{curr, pred};
             pred = curr;
             if (key < curr.key) curr = curr.left;
-            else curr = curr.right;
+            else {
+                lastRight = curr;
+                curr = curr.right;
+            }
         }
-        return new Node[]{null, pred}; // Key not found, but pred is the valid leaf parent
+        return new Node[]{null, pred, lastRight}; // Key not found, but pred is the valid leaf parent
+    }
+
+    // A search that did not find its key may have missed it: if the key was
+    // the successor of a node with two children being removed, it moves up
+    // into the replacement node, above the search.  That node is the last one
+    // where the search went right (the successor is the leftmost key to its
+    // right), and it is marked before the successor is unlinked, so the
+    // search only has to look again if that node is marked.
+    private static boolean mayHaveMissed(final Node[] nodes) {
+        return nodes[2] != null && nodes[2].marked;
     }
 
     private boolean validate(Node pred, Node curr, int key) {
@@ -52,9 +139,27 @@ public class BST implements BSTInterface {
 
     @Override
     public final boolean contains(final int key) {
-        Node[] nodes = find(key);
-        Node curr = nodes[0];
-        return curr != null && curr.key == key && !curr.marked;
+        if (cache != null) {
+            if (cacheLookup(key)) {
+                cacheHits.increment();
+                return true;
+            }
+        }
+        while (true) {
+            Node[] nodes = find(key);
+            Node curr = nodes[0];
+            if (curr == null) {
+                if (mayHaveMissed(nodes)) continue;
+                return false;
+            }
+            if (curr.key != key) return false;
+            if (!curr.marked) {
+                if (cache != null) cacheFill(key, curr);
+                return true;
+            }
+            if (!curr.replaced) return false;
+            // the node was copied elsewhere (by a rotation or a removal), so look again
+        }
     }
 
     @Override
@@ -71,6 +176,7 @@ public class BST implements BSTInterface {
                 if (curr != null) {
                     return false; 
                 }
+                if (mayHaveMissed(nodes)) continue;
                 Node newNode = new Node(key);
                 if (key < pred.key) {
                     pred.left = newNode;
@@ -92,7 +198,10 @@ public class BST implements BSTInterface {
             Node curr = nodes[0];
             Node pred = nodes[1];
 
-            if (curr == null) return false;
+            if (curr == null) {
+                if (mayHaveMissed(nodes)) continue;
+                return false;
+            }
 
             pred.lock.lock();
             curr.lock.lock();
@@ -105,6 +214,7 @@ public class BST implements BSTInterface {
                     Node child = (curr.left != null) ? curr.left : curr.right;
                     if (key < pred.key) pred.left = child;
                     else pred.right = child;
+                    if (cache != null) cacheInvalidate(curr);
                     return true;
                 }
 
@@ -130,6 +240,7 @@ public class BST implements BSTInterface {
 
                     // 1. Mark BOTH nodes logically. 
                     curr.marked = true; 
+                    succ.replaced = true; // (succ's key moves into the replacement)
                     succ.marked = true; 
 
                     // 2. Create a "Replacement Node" 
@@ -151,6 +262,10 @@ public class BST implements BSTInterface {
                     if (key < pred.key) pred.left = replacement;
                     else pred.right = replacement;
 
+                    if (cache != null) {
+                        cacheInvalidate(curr);
+                        cacheInvalidate(succ);
+                    }
                     return true;
 
                 } finally {
@@ -165,8 +280,258 @@ public class BST implements BSTInterface {
     }
 
 
+    // -------- Range removal --------
+    // Walks down the tree keeping the bounds on the keys each subtree can
+    // hold.  A subtree whose bounds lie inside [lo, hi] is detached from its
+    // parent in one step.  The other nodes in range lie on the two boundary
+    // paths; by the time one of them is removed with remove(), its in-range
+    // subtrees are gone, so it has at most one child and needs no
+    // replacement node.
+
+    private static final class RangeFrame {
+        final Node parent, node;
+        final long low, high; // every key in node's subtree is in (low, high)
+        final boolean removeNode; // on the second visit, after its subtrees: remove node itself
+        RangeFrame(Node parent, Node node, long low, long high, boolean removeNode) {
+            this.parent = parent;
+            this.node = node;
+            this.low = low;
+            this.high = high;
+            this.removeNode = removeNode;
+        }
+    }
+
+    @Override
+    public Removed removeRange(final int lo, final int hi) {
+        int count = 0;
+        long keysum = 0;
+        final ArrayDeque<RangeFrame> stack = new ArrayDeque<RangeFrame>();
+        final ArrayList<Node> locked = new ArrayList<Node>();
+        if (sentinel.left != null) stack.push(new RangeFrame(sentinel, sentinel.left, Long.MIN_VALUE, sentinel.key, false));
+        while (!stack.isEmpty()) {
+            final RangeFrame f = stack.pop();
+            final Node node = f.node;
+            if (f.removeNode) {
+                if (remove(node.key)) { ++count; keysum += node.key; }
+                continue;
+            }
+            if (f.low+1 >= lo && f.high-1 <= hi) {
+                locked.clear();
+                if (detach(f.parent, node, lo, hi, locked)) {
+                    for (Node n : locked) { ++count; keysum += n.key; }
+                    continue;
+                }
+                // the subtree changed concurrently, so take it apart node by node
+            }
+            final Node left = node.left, right = node.right;
+            if (node.key < lo) {
+                if (right != null) stack.push(new RangeFrame(node, right, node.key, f.high, false));
+            } else if (node.key > hi) {
+                if (left != null) stack.push(new RangeFrame(node, left, f.low, node.key, false));
+            } else {
+                stack.push(new RangeFrame(f.parent, node, f.low, f.high, true));
+                if (right != null) stack.push(new RangeFrame(node, right, node.key, f.high, false));
+                if (left != null) stack.push(new RangeFrame(node, left, f.low, node.key, false));
+            }
+        }
+        return new Removed(count, keysum);
+    }
+
+    // Detaches the subtree rooted at node from parent, if it is still there
+    // and all of its keys are in [lo, hi].  The whole subtree is locked
+    // (top-down) and checked before anything is marked, so either every
+    // node is removed or none is.  On success, locked holds the removed
+    // nodes (on failure, the nodes it happened to lock).
+    private boolean detach(final Node parent, final Node node, final int lo, final int hi, final ArrayList<Node> locked) {
+        parent.lock.lock();
+        try {
+            if (parent.marked || child(parent, node.key) != node) return false;
+            final ArrayDeque<Node> pending = new ArrayDeque<Node>();
+            pending.push(node);
+            while (!pending.isEmpty()) {
+                final Node n = pending.pop();
+                n.lock.lock();
+                locked.add(n);
+                if (n.marked || n.key < lo || n.key > hi) return false;
+                if (n.left != null) pending.push(n.left);
+                if (n.right != null) pending.push(n.right);
+            }
+            for (Node n : locked) n.marked = true; // LINEARIZATION POINT (of each key)
+            setChild(parent, node.key, null);
+            return true;
+        } finally {
+            for (Node n : locked) n.lock.unlock();
+            parent.lock.unlock();
+        }
+    }
+
+    // -------- Background rebalancing --------
+    // A rotation never changes a node that a search may be passing through.
+    // Instead, the two rotated nodes are copied, the copies are linked in
+    // under the parent, and the originals are marked as replaced.  The
+    // originals keep their children, so a search that is already below them
+    // still finds its key, and a search that stops at one of them retries.
+    // Locks are taken top-down (parent, node, child), like in remove.
+
+    private static Node child(final Node parent, final int key) {
+        return key < parent.key ? parent.left : parent.right;
+    }
+
+    private static void setChild(final Node parent, final int key, final Node node) {
+        if (key < parent.key) parent.left = node;
+        else parent.right = node;
+    }
+
+    private static void retire(final Node node) {
+        node.replaced = true;
+        node.marked = true;
+    }
+
+    // Rotates the left child of n up into n's place under p.  Returns the
+    // new subtree root, or null if the tree changed concurrently.
+    private Node rotateRight(final Node p, final Node n) {
+        p.lock.lock();
+        n.lock.lock();
+        try {
+            final Node l = n.left;
+            if (l == null) return null;
+            l.lock.lock();
+            try {
+                if (p.marked || n.marked || l.marked || child(p, n.key) != n) return null;
+                final Node n2 = new Node(n.key);
+                n2.left = l.right;
+                n2.right = n.right;
+                final Node l2 = new Node(l.key);
+                l2.left = l.left;
+                l2.right = n2;
+                setChild(p, n.key, l2);
+                retire(n);
+                retire(l);
+                return l2;
+            } finally {
+                l.lock.unlock();
+            }
+        } finally {
+            n.lock.unlock();
+            p.lock.unlock();
+        }
+    }
+
+    // Mirror image of rotateRight.
+    private Node rotateLeft(final Node p, final Node n) {
+        p.lock.lock();
+        n.lock.lock();
+        try {
+            final Node r = n.right;
+            if (r == null) return null;
+            r.lock.lock();
+            try {
+                if (p.marked || n.marked || r.marked || child(p, n.key) != n) return null;
+                final Node n2 = new Node(n.key);
+                n2.right = r.left;
+                n2.left = n.left;
+                final Node r2 = new Node(r.key);
+                r2.right = r.right;
+                r2.left = n2;
+                setChild(p, n.key, r2);
+                retire(n);
+                retire(r);
+                return r2;
+            } finally {
+                r.lock.unlock();
+            }
+        } finally {
+            n.lock.unlock();
+            p.lock.unlock();
+        }
+    }
+
+    // One post-order pass with an explicit stack (the tree may be a long
+    // path).  Each frame collects the heights of its children and
+    // grandchildren, which is enough to choose an AVL-style single or double
+    // rotation where the children's heights differ by more than one.
+    // Heights are only estimates: they are not locked, and the heights below
+    // a double rotation are guessed.  The next pass corrects them.
+    @Override
+    public int rebalance(final AtomicBoolean stop) {
+        final int LEFT = 0, RIGHT = 1, DONE = 2;
+        Node[] nodes = new Node[64];
+        Node[] parents = new Node[64];
+        int[] state = new int[64];
+        int[] heights = new int[6*64]; // per frame: left, right, left.left, left.right, right.left, right.right
+        int top = 0, rotations = 0, visits = 0;
+        if (sentinel.left != null) { nodes[0] = sentinel.left; parents[0] = sentinel; state[0] = LEFT; top = 1; }
+
+        while (top > 0) {
+            if ((++visits & 255) == 0 && stop.get()) break;
+            final int f = top-1;
+            final Node node = nodes[f];
+            if (state[f] != DONE) {
+                final Node next = state[f] == LEFT ? node.left : node.right;
+                ++state[f];
+                if (next != null) {
+                    if (top == nodes.length) {
+                        nodes = java.util.Arrays.copyOf(nodes, 2*top);
+                        parents = java.util.Arrays.copyOf(parents, 2*top);
+                        state = java.util.Arrays.copyOf(state, 2*top);
+                        heights = java.util.Arrays.copyOf(heights, 6*2*top);
+                    }
+                    nodes[top] = next;
+                    parents[top] = node;
+                    state[top] = LEFT;
+                    java.util.Arrays.fill(heights, 6*top, 6*top+6, 0);
+                    ++top;
+                }
+                continue;
+            }
 
+            // both subtrees are done: rebalance this one if needed
+            final int h = 6*f;
+            final int hl = heights[h], hr = heights[h+1];
+            int height = 1 + Math.max(hl, hr), childLeft = hl, childRight = hr;
+            if (!node.marked && hl > hr+1) {
+                final int a = heights[h+2], b = heights[h+3];
+                final boolean twice = b > a; // left-right case: first rotate the left child's right child up
+                final Node l = node.left;
+                if (!twice || (l != null && rotateLeft(node, l) != null)) { // (otherwise the tree changed, so wait for the next pass)
+                    if (twice) ++rotations;
+                    if (rotateRight(parents[f], node) != null) {
+                        ++rotations;
+                        childLeft = twice ? 1 + Math.max(a, b-1) : a;
+                        childRight = 1 + Math.max(twice ? b-1 : b, hr);
+                        height = 1 + Math.max(childLeft, childRight);
+                    }
+                }
+            } else if (!node.marked && hr > hl+1) {
+                final int c = heights[h+4], d = heights[h+5];
+                final boolean twice = c > d;
+                final Node r = node.right;
+                if (!twice || (r != null && rotateRight(node, r) != null)) { // (otherwise the tree changed, so wait for the next pass)
+                    if (twice) ++rotations;
+                    if (rotateLeft(parents[f], node) != null) {
+                        ++rotations;
+                        childRight = twice ? 1 + Math.max(c-1, d) : d;
+                        childLeft = 1 + Math.max(hl, twice ? c-1 : c);
+                        height = 1 + Math.max(childLeft, childRight);
+                    }
+                }
+            }
 
+            // report to the parent frame (state[] says which child this was)
+            nodes[f] = null;
+            parents[f] = null;
+            --top;
+            if (top > 0) {
+                final int p = 6*(top-1);
+                if (state[top-1] == RIGHT) { // (left child finished, right not yet started)
+                    heights[p] = height; heights[p+2] = childLeft; heights[p+3] = childRight;
+                } else {
+                    heights[p+1] = height; heights[p+4] = childLeft; heights[p+5] = childRight;
+                }
+            }
+        }
+        return rotations;
+    }
 
     // Return your ID #
     @Override
@@ -183,14 +548,21 @@ public class BST implements BSTInterface {
         return countNodes(sentinel.left);
     }
 
-    private int countNodes(Node node) {
-        if (node == null) return 0;
-        
-        // Although successful remove() physically unlinks nodes,
-        // we check !node.marked to ensure we only count active set members.
-        return (node.marked ? 0 : 1)
-         + countNodes(node.left)
-         + countNodes(node.right);
+    // Walks with an explicit stack (as measureSubtree does), since sequential
+    // keys build a degenerate tree that would overflow the call stack.
+    private int countNodes(Node root) {
+        int n = 0;
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        if (root != null) stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            // Although successful remove() physically unlinks nodes,
+            // we check !node.marked to ensure we only count active set members.
+            if (!node.marked) ++n;
+            if (node.left != null) stack.push(node.left);
+            if (node.right != null) stack.push(node.right);
+        }
+        return n;
     }
 
     // Returns the sum of keys in the tree
@@ -204,11 +576,82 @@ public class BST implements BSTInterface {
         return sumKeys(sentinel.left);
     }
 
-    private long sumKeys(Node node) {
-        if (node == null) return 0L;
-        
-        long sum = node.marked ? 0L : (long) node.key;
-        
-        return sum + sumKeys(node.left) + sumKeys(node.right);
+    private long sumKeys(Node root) {
+        long sum = 0L;
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        if (root != null) stack.push(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (!node.marked) sum += (long) node.key;
+            if (node.left != null) stack.push(node.left);
+            if (node.right != null) stack.push(node.right);
+        }
+        return sum;
+    }
+
+    // Computes shape statistics without recursion, using nthreads threads.
+    // The top of the tree is expanded breadth-first until there are enough
+    // subtrees to share out, then each thread walks its subtrees with an
+    // explicit stack.
+    @Override
+    public TreeShape measureShape(final int nthreads) {
+        final TreeShape shape = new TreeShape();
+        final int MAX_EXPANDED_LEVELS = 64;
+        ArrayList<Node> frontier = new ArrayList<Node>();
+        if (sentinel.left != null) frontier.add(sentinel.left);
+        int depth = 0;
+        while (!frontier.isEmpty() && frontier.size() < 8*nthreads && depth < MAX_EXPANDED_LEVELS) {
+            final ArrayList<Node> next = new ArrayList<Node>(2*frontier.size());
+            for (Node node : frontier) {
+                shape.visit(depth, node.marked);
+                if (node.left != null) next.add(node.left);
+                if (node.right != null) next.add(node.right);
+            }
+            frontier = next;
+            ++depth;
+        }
+
+        final ArrayList<Node> subtrees = frontier;
+        final int frontierDepth = depth;
+        final TreeShape[] partial = new TreeShape[Math.max(1, Math.min(nthreads, subtrees.size()))];
+        final Thread[] threads = new Thread[partial.length];
+        for (int t=0;t<threads.length;t++) {
+            final int tid = t;
+            partial[t] = new TreeShape();
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i=tid;i<subtrees.size();i+=threads.length) {
+                        measureSubtree(subtrees.get(i), frontierDepth, partial[tid]);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t=0;t<threads.length;t++) {
+            try { threads[t].join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+            shape.merge(partial[t]);
+        }
+        return shape;
+    }
+
+    private static void measureSubtree(final Node root, final int rootDepth, final TreeShape shape) {
+        Node[] nodes = new Node[64];
+        int[] depths = new int[64];
+        int top = 0;
+        nodes[top] = root;
+        depths[top++] = rootDepth;
+        while (top > 0) {
+            final Node node = nodes[--top];
+            final int depth = depths[top];
+            nodes[top] = null;
+            shape.visit(depth, node.marked);
+            if (top+2 > nodes.length) {
+                nodes = java.util.Arrays.copyOf(nodes, 2*nodes.length);
+                depths = java.util.Arrays.copyOf(depths, 2*depths.length);
+            }
+            if (node.right != null) { nodes[top] = node.right; depths[top++] = depth+1; }
+            if (node.left != null) { nodes[top] = node.left; depths[top++] = depth+1; }
+        }
     }
 }
@@ -0,0 +1,45 @@
+package algorithms;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import main.BSTInterface;
+
+
+// Baseline: the JDK's concurrent hash set (unordered, so an upper bound on
+// what an ordered set can be expected to do).
+public class HashKeySet implements BSTInterface {
+
+    private final Set<Integer> set = ConcurrentHashMap.<Integer>newKeySet();
+
+    @Override
+    public final boolean contains(final int key) {
+        return set.contains(key);
+    }
+
+    @Override
+    public final boolean insert(final int key) {
+        return set.add(key);
+    }
+
+    @Override
+    public final boolean remove(final int key) {
+        return set.remove(key);
+    }
+
+    @Override
+    public String getName() {
+        return "CHMKeySet";
+    }
+
+    @Override
+    public final int size() {
+        return set.size();
+    }
+
+    @Override
+    public final long getKeysum() {
+        long sum = 0;
+        for (int key : set) sum += key;
+        return sum;
+    }
+}
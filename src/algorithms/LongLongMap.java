@@ -0,0 +1,326 @@
+package algorithms;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+import main.LongMapInterface;
+
+
+// A concurrent ordered map from long keys to long values, using the same
+// per-node locking as BST (find without locks, then lock and validate).
+// Keys and values are stored in primitive fields, so there is no boxing
+// and a single object per entry.
+public class LongLongMap implements LongMapInterface {
+
+    class Node{
+
+        volatile Node left;
+        volatile Node right;
+        final long key;
+        volatile long value;
+        volatile boolean marked;
+        volatile boolean replaced; // marked because a copy took its place, so its key is still in the map
+        final ReentrantLock lock;
+
+        public Node(long key, long value){
+            this.key = key;
+            this.value = value;
+            this.lock = new ReentrantLock();
+        }
+
+    }
+
+    private final Node sentinel = new Node(Long.MAX_VALUE, NO_VALUE);
+
+    public LongLongMap() {
+    }
+
+    private static void checkKey(long key) {
+        if (key == NO_KEY || key == Long.MAX_VALUE) throw new IllegalArgumentException("reserved key " + key);
+    }
+
+    private static void checkValue(long value) {
+        if (value == NO_VALUE) throw new IllegalArgumentException("reserved value " + value);
+    }
+
+    private Node[] find(long key) {
+        Node pred = sentinel;
+        Node curr = sentinel.left;
+        Node lastRight = null; // the last node where the search went right
+
+        while (curr != null) {
+            if (key == curr.key) return new Node[]{curr, pred};
+            pred = curr;
+            if (key < curr.key) curr = curr.left;
+            else {
+                lastRight = curr;
+                curr = curr.right;
+            }
+        }
+        return new Node[]{null, pred, lastRight};
+    }
+
+    // As in BST: a search that did not find its key must look again if the
+    // last node where it went right was removed, since the key may have been
+    // that node's successor, which moves up into the replacement node.
+    private static boolean mayHaveMissed(Node[] nodes) {
+        return nodes[2] != null && nodes[2].marked;
+    }
+
+    private boolean validate(Node pred, Node curr, long key) {
+        if (pred.marked) return false;
+        if (curr != null && curr.marked) return false;
+
+        if (key < pred.key) {
+            return pred.left == curr;
+        } else {
+            return pred.right == curr;
+        }
+    }
+
+    // Reads the value, then checks the node is still present.  Since marking
+    // is permanent, the node was present when the value was read.
+    private static long valueIfPresent(Node node) {
+        if (node == null) return NO_VALUE;
+        long value = node.value;
+        return node.marked ? NO_VALUE : value;
+    }
+
+    @Override
+    public final long get(final long key) {
+        while (true) {
+            Node curr = sentinel.left;
+            Node lastRight = null;
+            while (curr != null && key != curr.key) {
+                if (key < curr.key) curr = curr.left;
+                else {
+                    lastRight = curr;
+                    curr = curr.right;
+                }
+            }
+            if (curr != null) {
+                long value = valueIfPresent(curr);
+                if (value != NO_VALUE || !curr.replaced) return value;
+                // the key moved into a replacement node, so look again
+            } else if (lastRight == null || !lastRight.marked) return NO_VALUE;
+        }
+    }
+
+    @Override
+    public final long put(final long key, final long value) {
+        checkKey(key);
+        checkValue(value);
+        while (true) {
+            Node[] nodes = find(key);
+            Node curr = nodes[0];
+            Node pred = nodes[1];
+
+            // -------- key present: overwrite the value in place --------
+            if (curr != null) {
+                curr.lock.lock();
+                try {
+                    if (curr.marked) continue; // removed (or replaced) concurrently
+                    long old = curr.value;
+                    curr.value = value;
+                    return old;
+                } finally {
+                    curr.lock.unlock();
+                }
+            }
+
+            // -------- key absent: link a new leaf --------
+            pred.lock.lock();
+            try {
+                if (!validate(pred, null, key) || mayHaveMissed(nodes)) continue;
+                Node newNode = new Node(key, value);
+                if (key < pred.key) pred.left = newNode;
+                else pred.right = newNode;
+                return NO_VALUE;
+            } finally {
+                pred.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public final long putIfAbsent(final long key, final long value) {
+        checkKey(key);
+        checkValue(value);
+        while (true) {
+            Node[] nodes = find(key);
+            Node curr = nodes[0];
+            Node pred = nodes[1];
+
+            if (curr != null) {
+                long existing = valueIfPresent(curr);
+                if (existing != NO_VALUE) return existing;
+                continue; // removed concurrently, so retry
+            }
+
+            pred.lock.lock();
+            try {
+                if (!validate(pred, null, key) || mayHaveMissed(nodes)) continue;
+                Node newNode = new Node(key, value);
+                if (key < pred.key) pred.left = newNode;
+                else pred.right = newNode;
+                return NO_VALUE;
+            } finally {
+                pred.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public final long remove(final long key) {
+        while (true) {
+            Node[] nodes = find(key);
+            Node curr = nodes[0];
+            Node pred = nodes[1];
+
+            if (curr == null) {
+                if (mayHaveMissed(nodes)) continue;
+                return NO_VALUE;
+            }
+
+            pred.lock.lock();
+            curr.lock.lock();
+            try {
+                if (!validate(pred, curr, key)) continue;
+
+                // -------- Case 0 or 1 child --------
+                if (curr.left == null || curr.right == null) {
+                    curr.marked = true; // LINEARIZATION POINT
+                    Node child = (curr.left != null) ? curr.left : curr.right;
+                    if (key < pred.key) pred.left = child;
+                    else pred.right = child;
+                    return curr.value;
+                }
+
+                // -------- Case 2 children --------
+                Node succPred = curr;
+                Node succ = curr.right;
+                succ.lock.lock();
+                try {
+                    while (succ.left != null) {
+                        Node nextSucc = succ.left;
+                        nextSucc.lock.lock();
+                        if (succPred != curr) succPred.lock.unlock();
+                        succPred = succ;
+                        succ = nextSucc;
+                    }
+
+                    if (succ.marked || (succPred == curr ? curr.right != succ : succPred.left != succ)) {
+                        continue; // (the finally releases succ and succPred)
+                    }
+
+                    curr.marked = true;
+                    succ.replaced = true; // (set before marked, so a get that sees the mark retries)
+                    succ.marked = true;
+
+                    // the successor moves up into a replacement node, carrying
+                    // its value (read under its lock, so no put can be lost)
+                    Node replacement = new Node(succ.key, succ.value);
+                    replacement.left = curr.left;
+
+                    Node succRightChild = succ.right;
+                    if (succPred == curr) {
+                        replacement.right = succRightChild;
+                    } else {
+                        replacement.right = curr.right;
+                        succPred.left = succRightChild;
+                    }
+
+                    if (key < pred.key) pred.left = replacement;
+                    else pred.right = replacement;
+
+                    return curr.value;
+
+                } finally {
+                    succ.lock.unlock();
+                    if (succPred != curr) succPred.lock.unlock();
+                }
+            } finally {
+                curr.lock.unlock();
+                pred.lock.unlock();
+            }
+        }
+    }
+
+    // Smallest key >= key.  If the best candidate turns out to be removed
+    // concurrently, the search is retried.  As in find, so is a search whose
+    // last right turn was at a removed node: its successor, which may be the
+    // answer, can have moved up into the replacement node, out of the search's
+    // path.
+    @Override
+    public final long ceilingKey(final long key) {
+        while (true) {
+            Node best = null;
+            Node lastRight = null;
+            Node curr = sentinel.left;
+            while (curr != null) {
+                if (key == curr.key) { best = curr; break; }
+                if (key < curr.key) { best = curr; curr = curr.left; }
+                else {
+                    lastRight = curr;
+                    curr = curr.right;
+                }
+            }
+            if (lastRight != null && lastRight.marked) continue;
+            if (best == null) return NO_KEY;
+            if (!best.marked) return best.key;
+        }
+    }
+
+    // Largest key <= key.  (The last right turn is at the best candidate
+    // itself, so its marked check already covers the case ceilingKey guards.)
+    @Override
+    public final long floorKey(final long key) {
+        while (true) {
+            Node best = null;
+            Node curr = sentinel.left;
+            while (curr != null) {
+                if (key == curr.key) { best = curr; break; }
+                if (key > curr.key) { best = curr; curr = curr.right; }
+                else curr = curr.left;
+            }
+            if (best == null) return NO_KEY;
+            if (!best.marked) return best.key;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "LongLongMap";
+    }
+
+    // Returns the number of keys in the map.
+    @Override
+    public final int size() {
+    // NOTE: Only called without concurrent operations.
+        int n = 0;
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        if (sentinel.left != null) stack.push(sentinel.left);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (!node.marked) ++n;
+            if (node.left != null) stack.push(node.left);
+            if (node.right != null) stack.push(node.right);
+        }
+        return n;
+    }
+
+    // Returns the sum of keys in the map.
+    @Override
+    public final long getKeysum() {
+    // NOTE: Only called without concurrent operations.
+        long sum = 0;
+        ArrayDeque<Node> stack = new ArrayDeque<Node>();
+        if (sentinel.left != null) stack.push(sentinel.left);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (!node.marked) sum += node.key;
+            if (node.left != null) stack.push(node.left);
+            if (node.right != null) stack.push(node.right);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,60 @@
+package algorithms;
+
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import main.BSTInterface;
+
+
+// Baseline: a sequential red-black tree behind one read-write lock.
+public class RWLockTreeSet implements BSTInterface {
+
+    private final TreeSet<Integer> set = new TreeSet<Integer>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public final boolean contains(final int key) {
+        lock.readLock().lock();
+        try {
+            return set.contains(key);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public final boolean insert(final int key) {
+        lock.writeLock().lock();
+        try {
+            return set.add(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public final boolean remove(final int key) {
+        lock.writeLock().lock();
+        try {
+            return set.remove(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "RWLockTreeSet";
+    }
+
+    @Override
+    public final int size() {
+        return set.size();
+    }
+
+    @Override
+    public final long getKeysum() {
+        long sum = 0;
+        for (int key : set) sum += key;
+        return sum;
+    }
+}
@@ -0,0 +1,43 @@
+package algorithms;
+
+import java.util.concurrent.ConcurrentSkipListSet;
+import main.BSTInterface;
+
+
+// Baseline: the JDK's lock-free ordered set.
+public class SkipListSet implements BSTInterface {
+
+    private final ConcurrentSkipListSet<Integer> set = new ConcurrentSkipListSet<Integer>();
+
+    @Override
+    public final boolean contains(final int key) {
+        return set.contains(key);
+    }
+
+    @Override
+    public final boolean insert(final int key) {
+        return set.add(key);
+    }
+
+    @Override
+    public final boolean remove(final int key) {
+        return set.remove(key);
+    }
+
+    @Override
+    public String getName() {
+        return "SkipList";
+    }
+
+    @Override
+    public final int size() {
+        return set.size();
+    }
+
+    @Override
+    public final long getKeysum() {
+        long sum = 0;
+        for (int key : set) sum += key;
+        return sum;
+    }
+}
@@ -0,0 +1,64 @@
+package algorithms;
+
+import java.util.TreeSet;
+import java.util.concurrent.locks.StampedLock;
+import main.BSTInterface;
+
+
+// Baseline: a sequential red-black tree behind one StampedLock.  Searches
+// take the read lock rather than an optimistic read: a writer may be
+// rotating the tree, and a walk through a torn view of TreeSet's plain
+// fields can follow a cycle forever, which neither validate() nor an
+// exception would ever catch (and TreeSet gives no way to bound the walk).
+public class StampedTreeSet implements BSTInterface {
+
+    private final TreeSet<Integer> set = new TreeSet<Integer>();
+    private final StampedLock lock = new StampedLock();
+
+    @Override
+    public final boolean contains(final int key) {
+        final long stamp = lock.readLock();
+        try {
+            return set.contains(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public final boolean insert(final int key) {
+        long stamp = lock.writeLock();
+        try {
+            return set.add(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public final boolean remove(final int key) {
+        long stamp = lock.writeLock();
+        try {
+            return set.remove(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "StampedTreeSet";
+    }
+
+    @Override
+    public final int size() {
+        return set.size();
+    }
+
+    @Override
+    public final long getKeysum() {
+        long sum = 0;
+        for (int key : set) sum += key;
+        return sum;
+    }
+}
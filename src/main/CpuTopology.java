@@ -0,0 +1,289 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The logical CPUs this process may run on, with the core and socket of
+ * each (read from /sys/devices/system/cpu on Linux), and the placement
+ * policies that map worker threads onto them:
+ *   none      leave placement to the OS scheduler (the default)
+ *   compact   fill one core (all of its hardware threads) after another,
+ *             and one socket after another
+ *   cores     one thread per core first, socket after socket, and only then
+ *             the second hardware threads of the cores
+ *   sockets   like cores, but alternating between the sockets
+ *   nosmt     one thread per core, never two on SMT siblings (threads
+ *             beyond the number of cores share cores)
+ * Threads are pinned by running taskset on their Linux thread ids, since
+ * Java has no affinity API.  Elsewhere, every CPU counts as its own core.
+ */
+public final class CpuTopology {
+    public static final String[] POLICIES = {"none", "compact", "cores", "sockets", "nosmt"};
+    private static CpuTopology instance;
+
+    private final Cpu[] cpus;   // sorted by socket, core and cpu number
+    private final int ncores, nsockets;
+
+    private static final class Cpu {
+        final int cpu, core, socket;
+        int coreIndex;   // of its core, counting from 0 on each socket
+        int smt;         // 0 for the first hardware thread of its core, 1 for its sibling, ...
+        Cpu(final int cpu, final int core, final int socket) {
+            this.cpu = cpu;
+            this.core = core;
+            this.socket = socket;
+        }
+    }
+
+    private CpuTopology(final List<Cpu> list) {
+        Collections.sort(list, new Comparator<Cpu>() {
+            @Override
+            public int compare(final Cpu a, final Cpu b) {
+                if (a.socket != b.socket) return a.socket < b.socket ? -1 : 1;
+                if (a.core != b.core) return a.core < b.core ? -1 : 1;
+                return a.cpu < b.cpu ? -1 : a.cpu > b.cpu ? 1 : 0;
+            }
+        });
+        int cores = 0, sockets = 0;
+        for (int i=0;i<list.size();i++) {
+            final Cpu c = list.get(i);
+            final Cpu prev = i > 0 ? list.get(i-1) : null;
+            if (prev == null || prev.socket != c.socket) {
+                ++sockets;
+                ++cores;
+                c.coreIndex = 0;
+            } else if (prev.core != c.core) {
+                ++cores;
+                c.coreIndex = prev.coreIndex + 1;
+            } else {
+                c.coreIndex = prev.coreIndex;
+                c.smt = prev.smt + 1;
+            }
+        }
+        this.cpus = list.toArray(new Cpu[list.size()]);
+        this.ncores = cores;
+        this.nsockets = sockets;
+    }
+
+    /** returns the topology of this machine (read once). **/
+    public static synchronized CpuTopology get() {
+        if (instance == null) instance = read(new File("/sys/devices/system/cpu"), new File("/proc/self/status"));
+        return instance;
+    }
+
+    /**
+     * Reads the topology of the CPUs in the affinity mask of this process
+     * (from the Cpus_allowed_list line of status), falling back to one core
+     * per available processor if sysfs cannot be read.
+     */
+    static CpuTopology read(final File sys, final File status) {
+        final ArrayList<Cpu> list = new ArrayList<Cpu>();
+        try {
+            int[] ids = parseList(readLine(new File(sys, "online")));
+            final String allowed = allowedList(status);
+            if (allowed != null) ids = intersect(ids, parseList(allowed));
+            for (int id : ids) {
+                final File topology = new File(sys, "cpu" + id + File.separator + "topology");
+                final int core = Integer.parseInt(readLine(new File(topology, "core_id")));
+                final int socket = Integer.parseInt(readLine(new File(topology, "physical_package_id")));
+                list.add(new Cpu(id, core, socket));
+            }
+        } catch (IOException | RuntimeException e) {
+            list.clear();
+        }
+        if (list.isEmpty()) {
+            for (int i=0;i<Runtime.getRuntime().availableProcessors();i++) list.add(new Cpu(i, i, 0));
+        }
+        return new CpuTopology(list);
+    }
+
+    private static String readLine(final File f) throws IOException {
+        final BufferedReader in = new BufferedReader(new FileReader(f));
+        try {
+            final String line = in.readLine();
+            if (line == null) throw new IOException("empty file " + f);
+            return line.trim();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String allowedList(final File status) {
+        try {
+            final BufferedReader in = new BufferedReader(new FileReader(status));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("Cpus_allowed_list:")) return line.substring("Cpus_allowed_list:".length()).trim();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // no affinity mask to respect
+        }
+        return null;
+    }
+
+    /** parses a cpu list such as "0-3,8,10-11". **/
+    static int[] parseList(final String list) {
+        final ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (String part : list.split(",")) {
+            if (part.isEmpty()) continue;
+            final int dash = part.indexOf('-');
+            final int lo = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+            final int hi = dash < 0 ? lo : Integer.parseInt(part.substring(dash+1));
+            for (int i=lo;i<=hi;i++) ids.add(i);
+        }
+        final int[] result = new int[ids.size()];
+        for (int i=0;i<result.length;i++) result[i] = ids.get(i);
+        return result;
+    }
+
+    private static int[] intersect(final int[] a, final int[] b) {
+        final int[] result = new int[a.length];
+        int n = 0;
+        for (int x : a) {
+            for (int y : b) {
+                if (x == y) {
+                    result[n++] = x;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    public int getCpus() { return cpus.length; }
+    public int getCores() { return ncores; }
+    public int getSockets() { return nsockets; }
+
+    public static boolean isPolicy(final String policy) {
+        return Arrays.asList(POLICIES).contains(policy);
+    }
+
+    /**
+     * Returns the cpu for each of nthreads threads under the policy, wrapping
+     * around if there are more threads than cpus (or cores, for nosmt), or
+     * null for "none".
+     */
+    public int[] place(final String policy, final int nthreads) {
+        if (policy.equals("none")) return null;
+        final ArrayList<Cpu> order = new ArrayList<Cpu>(Arrays.asList(cpus));
+        if (policy.equals("nosmt")) {
+            for (int i=order.size()-1;i>=0;i--) if (order.get(i).smt > 0) order.remove(i);
+        } else if (policy.equals("cores")) {
+            Collections.sort(order, new Comparator<Cpu>() { // (stable, so socket and core order stay)
+                @Override
+                public int compare(final Cpu a, final Cpu b) { return Integer.compare(a.smt, b.smt); }
+            });
+        } else if (policy.equals("sockets")) {
+            Collections.sort(order, new Comparator<Cpu>() {
+                @Override
+                public int compare(final Cpu a, final Cpu b) {
+                    if (a.smt != b.smt) return Integer.compare(a.smt, b.smt);
+                    return Integer.compare(a.coreIndex, b.coreIndex);
+                }
+            });
+        } else if (!policy.equals("compact")) {
+            throw new IllegalArgumentException("unknown placement policy \"" + policy + "\"");
+        }
+        final int[] result = new int[nthreads];
+        for (int i=0;i<nthreads;i++) result[i] = order.get(i % order.size()).cpu;
+        return result;
+    }
+
+    /** formats a placement for the CSV, e.g. "0;2;4;6" (empty for none). **/
+    public static String format(final int[] placement) {
+        if (placement == null) return "";
+        final StringBuilder sb = new StringBuilder();
+        for (int i=0;i<placement.length;i++) sb.append(i > 0 ? ";" : "").append(placement[i]);
+        return sb.toString();
+    }
+
+    /** formats the distinct cpus of a placement as a cpu list for taskset -c. **/
+    public static String cpuList(final int[] placement) {
+        final int[] sorted = placement.clone();
+        Arrays.sort(sorted);
+        final StringBuilder sb = new StringBuilder();
+        for (int i=0;i<sorted.length;i++) {
+            if (i > 0 && sorted[i] == sorted[i-1]) continue;
+            sb.append(sb.length() > 0 ? "," : "").append(sorted[i]);
+        }
+        return sb.toString();
+    }
+
+    /** true if threads can be pinned (on Linux, with taskset installed). **/
+    public static boolean canPin() {
+        final String tid = currentThreadId();
+        return tid != null && taskset("-p", tid);
+    }
+
+    /**
+     * Pins the calling thread to cpu, and returns false if that failed (or
+     * if the thread's affinity mask is not just cpu afterwards).
+     */
+    public static boolean pinCurrentThread(final int cpu) {
+        final String tid = currentThreadId();
+        if (tid == null || !taskset("-p", "-c", String.valueOf(cpu), tid)) return false;
+        return String.valueOf(cpu).equals(allowedList(new File("/proc/thread-self/status")));
+    }
+
+    // (reads the link itself: getCanonicalFile may answer from the JDK 8
+    // canonical path cache, which holds the tid of whichever thread asked first)
+    private static String currentThreadId() {
+        try {
+            return Files.readSymbolicLink(Paths.get("/proc/thread-self")).getFileName().toString();
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static boolean taskset(final String... args) {
+        final ArrayList<String> cmd = new ArrayList<String>();
+        cmd.add("taskset");
+        cmd.addAll(Arrays.asList(args));
+        try {
+            final Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            final InputStream in = p.getInputStream();
+            final byte[] buf = new byte[256];
+            while (in.read(buf) >= 0) {} // (discard the output)
+            return p.waitFor() == 0;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,532 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes a tree durable by appending every successful insert and remove to a
+ * write-ahead log, and by taking periodic snapshots.
+ *
+ * Updates to the same key are serialized by a striped lock, and each one
+ * appends its log record while holding its stripe, so the log holds the
+ * updates to each key in the order they took effect.  (contains neither
+ * locks nor logs.)  Records go into an in-memory buffer, and a flusher
+ * thread writes the buffer to the log through a FileChannel and forces it
+ * to disk, while new records collect in a second buffer.  At the ASYNC
+ * level, the flusher runs every ASYNC_FLUSH_MILLIS and updates return right
+ * away.  At the GROUP_COMMIT level, an update returns only once its record
+ * has been forced; the flusher starts a new batch as soon as the previous
+ * one is on disk, so all updates that arrive during one fsync share the
+ * next one.
+ *
+ * A log position (LSN) is a byte offset in the whole log.  The log is split
+ * into segments, named by the LSN they start at.  A snapshot first starts a
+ * new segment, and then reads the keys of the tree (while updates go on)
+ * into a compact, delta-encoded file named by that segment's LSN.  Any key
+ * that changed during the scan has a record in the new segment, and since
+ * replaying a record just sets the key's state, replaying the segments from
+ * the snapshot on top of it gives the current contents.  Older segments and
+ * snapshots are then deleted.
+ *
+ * Record layout: (op << RECORD_OP_SHIFT) | key as a big-endian int, with
+ * the op codes of OpTrace, so keys must be less than 2^30.
+ * Snapshot layout: int magic, int version, long lsn, int nkeys, followed by
+ * the keys in ascending order, encoded like an OpTrace segment.
+ */
+public final class DurableTree implements BSTInterface {
+    public static final int ASYNC = 1, GROUP_COMMIT = 2;
+    public static final long ASYNC_FLUSH_MILLIS = 10;
+    static final int RECORD_OP_SHIFT = 30;
+    static final int RECORD_KEY_MASK = (1<<RECORD_OP_SHIFT)-1;
+    static final int RECORD_BYTES = 4;
+    static final int SNAPSHOT_MAGIC = 0x42535453; // "BSTS"
+    static final int SNAPSHOT_VERSION = 1;
+    static final int SNAPSHOT_HEADER_BYTES = 4 + 4 + 8 + 4;
+    static final int BUFFER_BYTES = 1<<20;
+    static final int STRIPE_BITS = 12;
+    static final int NSTRIPES = 1<<STRIPE_BITS;
+
+    private final BSTInterface tree;
+    private final File dir;
+    private final int level;
+    private final int maxkey;
+    private final ReentrantLock[] stripes = new ReentrantLock[NSTRIPES];
+
+    // log state, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();    // the flusher waits for records (or a roll request)
+    private final Condition flushed = lock.newCondition(); // updates wait for room in the buffer or for their fsync
+    private ByteBuffer active = ByteBuffer.allocateDirect(BUFFER_BYTES);   // records are appended here
+    private ByteBuffer flushing = ByteBuffer.allocateDirect(BUFFER_BYTES); // owned by the flusher while it writes
+    private long appendedLSN, durableLSN;
+    private long segmentLSN;        // where the current segment starts
+    private boolean full, rollRequested, closing;
+    private IOException failure;
+    private long fsyncs;
+
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private int snapshots;
+    private FileChannel channel; // (only used by the flusher once it has started)
+    private final Thread flusher;
+    private final Thread snapshotter;
+    private final Object snapshotTimer = new Object(); // (not interrupt, which would close a channel the snapshotter is writing)
+    private boolean stopSnapshots; // guarded by snapshotTimer
+
+    /**
+     * Starts logging updates to tree in dir, and takes a first snapshot of
+     * its current keys (which must all be in [1, maxkey]).  If
+     * snapshotMillis > 0, a new snapshot is taken every snapshotMillis ms.
+     */
+    public DurableTree(final BSTInterface tree, final File dir, final int level, final int maxkey,
+            final long snapshotMillis) throws IOException {
+        if (level != ASYNC && level != GROUP_COMMIT) throw new IllegalArgumentException("unknown durability level " + level);
+        if (maxkey > RECORD_KEY_MASK) throw new IllegalArgumentException("keys must be less than " + (RECORD_KEY_MASK+1));
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        this.tree = tree;
+        this.dir = dir;
+        this.level = level;
+        this.maxkey = maxkey;
+        for (int i=0;i<NSTRIPES;i++) stripes[i] = new ReentrantLock();
+        channel = openSegment(0);
+
+        flusher = new Thread("wal-flusher") {
+            @Override
+            public void run() { flushLoop(); }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+        snapshot();
+
+        if (snapshotMillis > 0) {
+            snapshotter = new Thread("wal-snapshotter") {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            synchronized (snapshotTimer) {
+                                final long end = System.currentTimeMillis() + snapshotMillis;
+                                for (long left = snapshotMillis; left > 0 && !stopSnapshots; left = end - System.currentTimeMillis()) {
+                                    snapshotTimer.wait(left);
+                                }
+                                if (stopSnapshots) return;
+                            }
+                            snapshot();
+                        }
+                    } catch (InterruptedException e) {
+                        // stopped
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        } else {
+            snapshotter = null;
+        }
+    }
+
+    public BSTInterface getTree() { return tree; }
+    public File getDirectory() { return dir; }
+    public String getLevelName() { return levelName(level); }
+    public long getRecords() { return appendedLSN / RECORD_BYTES; } // (once closed)
+    public long getFsyncs() { return fsyncs; }                     // (once closed)
+    public int getSnapshots() { return snapshots; }
+
+    public static String levelName(final int level) {
+        return level == ASYNC ? "async" : level == GROUP_COMMIT ? "group" : "none";
+    }
+
+    /** returns the level called name, 0 for none, or -1 if there is no such level. **/
+    public static int parseLevel(final String name) {
+        if (name.equals("none")) return 0;
+        if (name.equals("async")) return ASYNC;
+        if (name.equals("group")) return GROUP_COMMIT;
+        return -1;
+    }
+
+    private ReentrantLock stripe(final int key) {
+        return stripes[(key * 0x9E3779B9) >>> (32 - STRIPE_BITS)];
+    }
+
+    @Override
+    public boolean contains(final int key) {
+        return tree.contains(key);
+    }
+
+    @Override
+    public boolean insert(final int key) {
+        final long lsn;
+        final ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            if (!tree.insert(key)) return false;
+            lsn = append(OpTrace.OP_INS << RECORD_OP_SHIFT | key);
+        } finally {
+            stripe.unlock();
+        }
+        if (level == GROUP_COMMIT) awaitDurable(lsn);
+        return true;
+    }
+
+    @Override
+    public boolean remove(final int key) {
+        final long lsn;
+        final ReentrantLock stripe = stripe(key);
+        stripe.lock();
+        try {
+            if (!tree.remove(key)) return false;
+            lsn = append(OpTrace.OP_DEL << RECORD_OP_SHIFT | key);
+        } finally {
+            stripe.unlock();
+        }
+        if (level == GROUP_COMMIT) awaitDurable(lsn);
+        return true;
+    }
+
+    @Override
+    public int size() { return tree.size(); }
+    @Override
+    public String getName() { return tree.getName(); }
+    @Override
+    public long getKeysum() { return tree.getKeysum(); }
+
+    // -------- the log --------
+
+    /** appends a record to the active buffer and returns the LSN just past it. **/
+    private long append(final int record) {
+        lock.lock();
+        try {
+            while (active.remaining() < RECORD_BYTES) {
+                checkFailure();
+                full = true;
+                work.signal();
+                flushed.awaitUninterruptibly();
+            }
+            active.putInt(record);
+            appendedLSN += RECORD_BYTES;
+            if (level == GROUP_COMMIT) work.signal();
+            return appendedLSN;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitDurable(final long lsn) {
+        lock.lock();
+        try {
+            while (durableLSN < lsn) {
+                checkFailure();
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) throw new RuntimeException("write-ahead log failed", failure);
+    }
+
+    private void flushLoop() {
+        try {
+            while (true) {
+                final long batchEnd;
+                final boolean roll;
+                lock.lock();
+                try {
+                    if (level == ASYNC) {
+                        long left = ASYNC_FLUSH_MILLIS * 1000000;
+                        while (!closing && !full && !rollRequested && left > 0) left = work.awaitNanos(left);
+                    } else {
+                        while (!closing && active.position() == 0 && !rollRequested) work.awaitUninterruptibly();
+                    }
+                    if (closing && active.position() == 0) break;
+                    final ByteBuffer t = active;
+                    active = flushing;
+                    flushing = t;
+                    batchEnd = appendedLSN;
+                    roll = rollRequested;
+                    rollRequested = false;
+                    full = false;
+                    flushed.signalAll(); // (there is room again)
+                } finally {
+                    lock.unlock();
+                }
+
+                final boolean empty = flushing.position() == 0;
+                flushing.flip();
+                while (flushing.hasRemaining()) channel.write(flushing);
+                flushing.clear();
+                if (!empty) channel.force(false);
+                if (roll) {
+                    channel.close();
+                    channel = openSegment(batchEnd);
+                }
+
+                lock.lock();
+                try {
+                    durableLSN = batchEnd;
+                    if (!empty) ++fsyncs;
+                    if (roll) segmentLSN = batchEnd;
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+            channel.close();
+        } catch (Exception e) {
+            lock.lock();
+            try {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private FileChannel openSegment(final long lsn) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(new File(dir, segmentName(lsn)), "rw");
+        raf.setLength(0);
+        return raf.getChannel();
+    }
+
+    static String segmentName(final long lsn) { return String.format("wal-%016x.log", lsn); }
+    static String snapshotName(final long lsn) { return String.format("snapshot-%016x.snap", lsn); }
+
+    /** files in dir named prefix + hex LSN + suffix, by LSN. **/
+    static TreeMap<Long, File> listByLSN(final File dir, final String prefix, final String suffix) {
+        final TreeMap<Long, File> result = new TreeMap<Long, File>();
+        final File[] files = dir.listFiles();
+        if (files == null) return result;
+        for (File f : files) {
+            final String name = f.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(suffix)) continue;
+            try {
+                result.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()), 16), f);
+            } catch (NumberFormatException e) {
+                // not one of ours
+            }
+        }
+        return result;
+    }
+
+    // -------- snapshots --------
+
+    /**
+     * Writes a snapshot of the tree (concurrently with updates), then
+     * deletes the log segments and snapshots it makes redundant.
+     */
+    public void snapshot() throws IOException {
+        snapshotLock.lock();
+        try {
+            // start a new log segment (unless the current one is still empty)
+            final long lsn;
+            lock.lock();
+            try {
+                if (appendedLSN > segmentLSN) {
+                    final long target = appendedLSN;
+                    rollRequested = true;
+                    work.signal();
+                    while (segmentLSN < target) {
+                        if (failure != null) throw failure;
+                        flushed.awaitUninterruptibly();
+                    }
+                }
+                lsn = segmentLSN;
+            } finally {
+                lock.unlock();
+            }
+
+            // every update before lsn is already in the tree
+            final OpTrace.Segment keys = new OpTrace.Segment();
+            for (int key=1; key<=maxkey; key++) {
+                if (tree.contains(key)) keys.append(OpTrace.OP_INS, key);
+            }
+            final File tmp = new File(dir, snapshotName(lsn) + ".tmp");
+            final RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(0);
+                final FileChannel ch = raf.getChannel();
+                final ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES);
+                header.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(lsn).putInt(keys.nops);
+                header.flip();
+                while (header.hasRemaining()) ch.write(header);
+                final ByteBuffer data = ByteBuffer.wrap(keys.buf, 0, keys.nbytes);
+                while (data.hasRemaining()) ch.write(data);
+                ch.force(true);
+            } finally {
+                raf.close();
+            }
+            final File file = new File(dir, snapshotName(lsn));
+            if (!tmp.renameTo(file)) throw new IOException("cannot rename " + tmp + " to " + file);
+            ++snapshots;
+
+            // recovery now starts from this snapshot
+            for (File f : listByLSN(dir, "snapshot-", ".snap").headMap(lsn).values()) f.delete();
+            for (File f : listByLSN(dir, "wal-", ".log").headMap(lsn).values()) f.delete();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Stops taking snapshots, writes and forces every record still in
+     * memory, and closes the log.  The tree itself stays usable, but further
+     * updates are not logged.
+     */
+    public void close() throws IOException {
+        if (snapshotter != null) {
+            synchronized (snapshotTimer) {
+                stopSnapshots = true;
+                snapshotTimer.notify();
+            }
+            try { snapshotter.join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+        }
+        lock.lock();
+        try {
+            closing = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        try { flusher.join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+        if (failure != null) throw failure;
+    }
+
+    // -------- recovery --------
+
+    /**
+     * Rebuilds the contents of a durable tree from the latest snapshot and
+     * log segments in dir, inserting into tree (which should be empty) with
+     * nthreads threads.  The snapshot is inserted in median order, so an
+     * unbalanced tree comes out balanced, and each thread then replays the
+     * log records for its share of the keys, in log order.
+     */
+    public static void recover(final File dir, final BSTInterface tree, final int nthreads) throws IOException {
+        long start = 0;
+        int[] keys = new int[0];
+        final TreeMap<Long, File> snapshotFiles = listByLSN(dir, "snapshot-", ".snap");
+        if (!snapshotFiles.isEmpty()) {
+            final ByteBuffer snap = map(snapshotFiles.lastEntry().getValue());
+            if (snap.getInt() != SNAPSHOT_MAGIC) throw new IOException("not a snapshot: " + snapshotFiles.lastEntry().getValue());
+            final int version = snap.getInt();
+            if (version != SNAPSHOT_VERSION) throw new IOException("unsupported snapshot version " + version);
+            start = snap.getLong();
+            keys = new int[snap.getInt()];
+            final OpTrace.Cursor cursor = new OpTrace.Cursor(snap.slice());
+            for (int i=0;i<keys.length && cursor.next();i++) keys[i] = cursor.key();
+        }
+        final ArrayList<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+        for (File f : listByLSN(dir, "wal-", ".log").tailMap(start).values()) segments.add(map(f));
+
+        // insert the top of the snapshot's median-order tree, until there are enough ranges to share out
+        final int[] snapshotKeys = keys;
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        if (keys.length > 0) ranges.add(new int[] {0, keys.length});
+        while (!ranges.isEmpty() && ranges.size() < 8*nthreads) {
+            final ArrayList<int[]> next = new ArrayList<int[]>(2*ranges.size());
+            for (int[] r : ranges) {
+                final int mid = (r[0] + r[1]) >>> 1;
+                tree.insert(keys[mid]);
+                if (mid > r[0]) next.add(new int[] {r[0], mid});
+                if (mid+1 < r[1]) next.add(new int[] {mid+1, r[1]});
+            }
+            ranges = next;
+        }
+        final ArrayList<int[]> subranges = ranges;
+        runInParallel(nthreads, new Task() {
+            @Override
+            public void run(final int tid) {
+                final ArrayList<int[]> stack = new ArrayList<int[]>();
+                for (int i=tid;i<subranges.size();i+=nthreads) {
+                    stack.add(subranges.get(i));
+                    while (!stack.isEmpty()) {
+                        final int[] r = stack.remove(stack.size()-1);
+                        final int mid = (r[0] + r[1]) >>> 1;
+                        tree.insert(snapshotKeys[mid]);
+                        if (mid+1 < r[1]) stack.add(new int[] {mid+1, r[1]});
+                        if (mid > r[0]) stack.add(new int[] {r[0], mid});
+                    }
+                }
+            }
+        });
+
+        // replay the log: every thread reads all of it, but applies only its own keys
+        runInParallel(nthreads, new Task() {
+            @Override
+            public void run(final int tid) {
+                for (ByteBuffer segment : segments) {
+                    final ByteBuffer buf = segment.duplicate();
+                    final int nrecords = buf.remaining() / RECORD_BYTES; // (ignores a torn record at the end)
+                    for (int i=0;i<nrecords;i++) {
+                        final int record = buf.getInt();
+                        final int key = record & RECORD_KEY_MASK;
+                        if (key % nthreads != tid) continue;
+                        if ((record >>> RECORD_OP_SHIFT) == OpTrace.OP_INS) tree.insert(key);
+                        else tree.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    private static ByteBuffer map(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close(); // mappings stay valid after the channel is closed
+        }
+    }
+
+    private interface Task {
+        void run(final int tid);
+    }
+
+    private static void runInParallel(final int nthreads, final Task task) {
+        final Thread[] threads = new Thread[nthreads];
+        final Throwable[] errors = new Throwable[nthreads];
+        for (int t=0;t<nthreads;t++) {
+            final int tid = t;
+            threads[t] = new Thread("recovery-" + t) {
+                @Override
+                public void run() {
+                    try { task.run(tid); } catch (Throwable e) { errors[tid] = e; }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t=0;t<nthreads;t++) {
+            try { threads[t].join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+            if (errors[t] != null) throw new RuntimeException("recovery thread " + t + " failed", errors[t]);
+        }
+    }
+}
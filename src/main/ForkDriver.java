@@ -0,0 +1,188 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Runs every experiment (for every garbage collector) in a freshly forked
+ * child JVM, so JIT profiles and heap state from one experiment cannot leak
+ * into the next.  Each child writes its CSV to a temporary file, and the
+ * driver merges them into one result, prefixed with gc, heap and jvmflags
+ * columns.  A child whose experiment pins its workers (-place-) is
+ * started under taskset, confined to the cpus of its workers.  Since each
+ * child runs a single experiment, the driver fills in relThroughput itself,
+ * from the mean throughput of the baselines (which run first) under the
+ * same collector.
+ */
+public class ForkDriver {
+    private final List<String> childArgs;  // harness arguments passed to every child (without -file- or driver switches)
+    private final List<String> gcs;        // collector names, e.g. "parallel", "g1", "z"
+    private final String heap;             // used for both -Xms and -Xmx; null to use the JVM default
+    private final List<String> jvmFlags;   // extra flags passed to every child
+    private final List<Main.Experiment> experiments; // one child each (a single null entry for a replay or phased run)
+
+    public ForkDriver(final List<String> childArgs, final List<String> gcs, final String heap,
+            final List<String> jvmFlags, final List<Main.Experiment> experiments) {
+        this.childArgs = childArgs;
+        this.gcs = gcs;
+        this.heap = heap;
+        this.jvmFlags = jvmFlags;
+        this.experiments = experiments;
+    }
+
+    static String gcFlag(final String gc) {
+        final String name = gc.toLowerCase();
+        if (name.equals("default")) return null;
+        if (name.equals("parallel")) return "-XX:+UseParallelGC";
+        if (name.equals("g1")) return "-XX:+UseG1GC";
+        if (name.equals("z") || name.equals("zgc")) return "-XX:+UseZGC";
+        if (name.equals("serial")) return "-XX:+UseSerialGC";
+        if (name.equals("shenandoah")) return "-XX:+UseShenandoahGC";
+        throw new RuntimeException("unknown garbage collector \"" + gc + "\"");
+    }
+
+    private List<String> command(final String gc, final int experiment, final File csv) {
+        final ArrayList<String> cmd = new ArrayList<String>();
+        // the child is confined to the cpus its workers are pinned to, along with its JIT and GC threads
+        final Main.Experiment ex = experiments.get(experiment);
+        if (ex != null && ex.cpus != null) {
+            cmd.add("taskset");
+            cmd.add("-c");
+            cmd.add(CpuTopology.cpuList(ex.cpus));
+        }
+        cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        cmd.add("-server");
+        final String gcFlag = gcFlag(gc);
+        if (gcFlag != null) cmd.add(gcFlag);
+        if (heap != null) {
+            cmd.add("-Xms" + heap);
+            cmd.add("-Xmx" + heap);
+        }
+        cmd.addAll(jvmFlags);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(Main.class.getName());
+        for (String arg : childArgs) {
+            // (children of the same experiment under different collectors must not overwrite each other's traces)
+            if (arg.startsWith("-record-") && gcs.size() > 1) arg += "." + gc;
+            cmd.add(arg);
+        }
+        cmd.add("-experiment" + experiment);
+        cmd.add("-file-" + csv.getPath());
+        return cmd;
+    }
+
+    private static String csvField(final String s) {
+        return s.indexOf(',') < 0 && s.indexOf('"') < 0 ? s : "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Runs all children one after another and writes the merged CSV to out.
+     * A child that fails is reported and skipped.
+     */
+    public void run(final PrintStream out) {
+        final String flags = csvField(String.join(" ", jvmFlags));
+        final String heapColumn = heap == null ? "default" : heap;
+        boolean printedHeader = false;
+        int nfailed = 0;
+        for (String gc : gcs) {
+            final TreeMap<String, Double> bestBaseline = new TreeMap<String, Double>(); // workloadKey -> best mean baseline throughput
+            for (int e=0;e<experiments.size();e++) {
+                final Main.Experiment experiment = experiments.get(e);
+                final boolean baseline = experiment != null && Main.isBaseline(experiment.alg);
+                final Double best = experiment == null || baseline ? null : bestBaseline.get(Main.workloadKey(experiment));
+                double throughputSum = 0;
+                int nrows = 0;
+                File csv = null;
+                try {
+                    csv = File.createTempFile("bst-fork-", ".csv");
+                    final List<String> cmd = command(gc, e, csv);
+                    System.out.println("forking: " + String.join(" ", cmd));
+                    final Process child = new ProcessBuilder(cmd).inheritIO().start();
+                    final int status = child.waitFor();
+                    if (status != 0) {
+                        System.out.println("WARNING: child for gc=" + gc + " experiment " + e + " exited with status " + status);
+                        ++nfailed;
+                        continue;
+                    }
+                    final BufferedReader in = new BufferedReader(new FileReader(csv));
+                    try {
+                        final String header = in.readLine();
+                        if (header == null) continue;
+                        if (!printedHeader) {
+                            out.println("gc,heap,jvmflags," + header);
+                            printedHeader = true;
+                        }
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (line.length() == 0) continue;
+                            if (experiment != null) {
+                                // (the last two columns are throughput and relThroughput)
+                                final int relComma = line.lastIndexOf(',');
+                                final double throughput = Double.parseDouble(line.substring(line.lastIndexOf(',', relComma-1)+1, relComma));
+                                throughputSum += throughput;
+                                ++nrows;
+                                if (best != null && best > 0 && relComma == line.length()-1) line += throughput / best;
+                            }
+                            out.println(gc + "," + heapColumn + "," + flags + "," + line);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    out.flush();
+                    if (baseline && nrows > 0) {
+                        final String key = Main.workloadKey(experiment);
+                        final double mean = throughputSum / nrows;
+                        if (!bestBaseline.containsKey(key) || mean > bestBaseline.get(key)) bestBaseline.put(key, mean);
+                    }
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    System.exit(-1);
+                } catch (InterruptedException ex) {
+                    ex.printStackTrace();
+                    System.exit(-1);
+                } finally {
+                    if (csv != null) {
+                        csv.delete();
+                        new File(csv.getPath() + "_stdout").delete();
+                    }
+                }
+            }
+        }
+        if (nfailed > 0) System.out.println("WARNING: " + nfailed + " forked runs failed");
+    }
+
+    static List<String> splitList(final String s, final String separator) {
+        final ArrayList<String> result = new ArrayList<String>();
+        for (String part : Arrays.asList(s.trim().split(separator))) {
+            if (part.length() > 0) result.add(part);
+        }
+        return result;
+    }
+}
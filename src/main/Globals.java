@@ -26,4 +26,5 @@ package main;
 public class Globals {
     public static final int DEFAULT_SEED = 581968107;//11720571;
     public static final int DEFAULT_KEYRANGE = 1000000;
+    public static final int DEFAULT_OPSTREAM_LENGTH = 1<<20;
 }
@@ -0,0 +1,362 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A history of the operations that worker threads performed on a tree, and
+ * an offline check that it is linearizable.
+ *
+ * Each thread records into its own buffer of primitive arrays: the
+ * operation and key (encoded like OpStream), its result, and one
+ * System.nanoTime() per operation.  The time read after an operation
+ * returns also serves as the invocation time of the next one, so
+ * times[i] and times[i+1] bracket operation i.  A buffer holds a fixed
+ * number of operations, and the trial ends when the first one is full
+ * (dropping operations would make the rest of the history impossible to
+ * check, and letting the other threads go on alone would skew throughput).
+ *
+ * A set is linearizable if and only if every key is (the keys are
+ * independent), so check() partitions the operations by key and checks the
+ * keys in parallel.  For each key it sweeps the invocations and responses
+ * in time order, keeping every (present?, which pending operations have
+ * already taken effect) configuration that some linearization of the
+ * operations so far can reach.  When an operation responds, only
+ * configurations in which it has taken effect survive; if none does, the
+ * history is not linearizable.  Operations of different threads whose
+ * times are equal are treated as concurrent, so a coarse clock can hide
+ * violations but cannot invent them.
+ */
+public final class History {
+    static final int OP_SHIFT = 30;
+    static final int KEY_MASK = (1<<OP_SHIFT)-1;
+    static final int OP_INS = 0, OP_DEL = 1, OP_FIND = 2;
+    private static final long PRESENT = 1L<<63; // the key's state, in the top bit of a configuration
+    static final int MAX_PENDING = 63;          // the other bits say which pending operations took effect
+
+    private final ThreadHistory[] threads;
+    private final CountDownLatch full = new CountDownLatch(1); // released when the first buffer fills
+
+    public History(final int nthreads, final int capacity) {
+        threads = new ThreadHistory[nthreads];
+        for (int i=0;i<nthreads;i++) threads[i] = new ThreadHistory(capacity, full);
+    }
+
+    /**
+     * Waits until some thread's buffer is full, or until nanos have passed,
+     * and returns true if a buffer is full.
+     */
+    public boolean awaitFull(final long nanos) throws InterruptedException {
+        return full.await(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public ThreadHistory get(final int thread) {
+        return threads[thread];
+    }
+
+    /** returns the number of operations recorded by all threads. **/
+    public long size() {
+        long n = 0;
+        for (ThreadHistory t : threads) n += t.size;
+        return n;
+    }
+
+    public static final class ThreadHistory {
+        final int[] ops;
+        final boolean[] results;
+        final long[] times;
+        private final CountDownLatch full;
+        int size;
+
+        ThreadHistory(final int capacity, final CountDownLatch full) {
+            ops = new int[capacity];
+            results = new boolean[capacity];
+            times = new long[capacity+1];
+            this.full = full;
+        }
+
+        /** must be called right before the first operation. **/
+        public void start() {
+            times[0] = System.nanoTime();
+        }
+
+        /** must be called right after each operation returns. **/
+        public void record(final int op, final int key, final boolean result) {
+            ops[size] = (op << OP_SHIFT) | key;
+            results[size] = result;
+            times[++size] = System.nanoTime();
+            if (size == ops.length) full.countDown();
+        }
+
+        public boolean isFull() {
+            return size == ops.length;
+        }
+    }
+
+    /**
+     * Checks the history using nthreads threads, given the keys that were
+     * present before it started and the tree after it ended (which must be
+     * quiescent, with keys in [0, maxkey]).  Returns null if the history is
+     * linearizable, and otherwise a description of what cannot be linearized.
+     */
+    public String check(final BitSet initial, final BSTInterface after, final int maxkey, final int nthreads) {
+        final long[] offsets = new long[threads.length+1];
+        for (int t=0;t<threads.length;t++) offsets[t+1] = offsets[t] + threads[t].size;
+        if (offsets[threads.length] > Integer.MAX_VALUE) throw new RuntimeException("history too long to check");
+
+        final String[] violations = new String[nthreads];
+        final ArrayList<Thread> checkers = new ArrayList<Thread>(nthreads);
+        for (int i=0;i<nthreads;i++) {
+            final int part = i;
+            checkers.add(new Thread("history-checker-" + i) {
+                @Override
+                public void run() {
+                    violations[part] = checkPartition(part, nthreads, offsets, initial, after, maxkey);
+                }
+            });
+        }
+        for (Thread t : checkers) t.start();
+        try {
+            for (Thread t : checkers) t.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        for (String v : violations) if (v != null) return v;
+        return null;
+    }
+
+    /** checks the keys k with k % nparts == part. **/
+    private String checkPartition(final int part, final int nparts, final long[] offsets,
+            final BitSet initial, final BSTInterface after, final int maxkey) {
+        // sort (key, global index) pairs, so each key's operations are grouped
+        // by thread, and each thread's operations are in program order
+        int n = 0;
+        for (ThreadHistory t : threads) {
+            for (int j=0;j<t.size;j++) if ((t.ops[j] & KEY_MASK) % nparts == part) ++n;
+        }
+        final long[] sorted = new long[n];
+        n = 0;
+        for (int t=0;t<threads.length;t++) {
+            final ThreadHistory h = threads[t];
+            for (int j=0;j<h.size;j++) {
+                final int key = h.ops[j] & KEY_MASK;
+                if (key % nparts == part) sorted[n++] = ((long) key << 32) | (offsets[t] + j);
+            }
+        }
+        java.util.Arrays.sort(sorted);
+
+        final KeyChecker checker = new KeyChecker(offsets);
+        for (int a=0, b; a<n; a=b) {
+            final int key = (int) (sorted[a] >>> 32);
+            for (b=a+1; b<n && (int) (sorted[b] >>> 32) == key; b++) {}
+            final String v = checker.check(key, sorted, a, b, initial.get(key), after.contains(key));
+            if (v != null) return v;
+        }
+
+        // keys that no thread touched must not have changed
+        for (int key=part, i=0; key<=maxkey; key+=nparts) {
+            while (i < n && (int) (sorted[i] >>> 32) < key) i++;
+            if (i < n && (int) (sorted[i] >>> 32) == key) continue;
+            if (initial.get(key) != after.contains(key)) {
+                return "key " + key + " is " + (initial.get(key) ? "no longer" : "now") + " in the tree, although no operation touched it";
+            }
+        }
+        return null;
+    }
+
+    /** the sweep for one key, with buffers reused across keys. **/
+    private final class KeyChecker {
+        final long[] offsets;
+        long[] sorted;
+        int[] thread = new int[8], pos = new int[8], end = new int[8]; // a cursor per thread that touched the key
+        boolean[] pending = new boolean[8];
+        HashSet<Long> configs = new HashSet<Long>(), next = new HashSet<Long>();
+
+        KeyChecker(final long[] offsets) {
+            this.offsets = offsets;
+        }
+
+        String check(final int key, final long[] sorted, final int from, final int to,
+                final boolean presentBefore, final boolean presentAfter) {
+            this.sorted = sorted;
+            int nt = 0;
+            for (int i=from; i<to; ) {
+                final int t = threadOf(sorted[i]);
+                int j = i+1;
+                while (j < to && threadOf(sorted[j]) == t) j++;
+                if (nt == MAX_PENDING) throw new RuntimeException("more than " + MAX_PENDING + " threads operated on key " + key);
+                if (nt == thread.length) grow();
+                thread[nt] = t;
+                pos[nt] = i;
+                end[nt] = j;
+                pending[nt] = false;
+                ++nt;
+                i = j;
+            }
+
+            configs.clear();
+            configs.add(presentBefore ? PRESENT : 0L);
+            while (true) {
+                // the earliest event, with invocations first among equal times
+                int r = -1;
+                long best = Long.MAX_VALUE;
+                for (int c=0;c<nt;c++) {
+                    if (pos[c] == end[c]) continue;
+                    final long time = threads[thread[c]].times[index(c) + (pending[c] ? 1 : 0)];
+                    if (time < best || (time == best && !pending[c] && pending[r])) {
+                        best = time;
+                        r = c;
+                    }
+                }
+                if (r < 0) break;
+                if (!pending[r]) {
+                    pending[r] = true;
+                    invoke(r, nt);
+                    continue;
+                }
+                respond(r, nt);
+                if (configs.isEmpty()) return "key " + key + ": " + describe(r) + " cannot be linearized";
+                pending[r] = false;
+                pos[r]++;
+            }
+            if (!configs.contains(presentAfter ? PRESENT : 0L)) {
+                return "key " + key + " is " + (presentAfter ? "" : "not ") + "in the tree after the history, which no linearization allows";
+            }
+            return null;
+        }
+
+        /**
+         * Lets operation c take effect right away in every configuration
+         * where it can, if it does not change the state (a contains, or an
+         * insert or remove that failed).  This loses nothing: any later
+         * linearization of c also works with c moved to the front.
+         */
+        private void invoke(final int c, final int nt) {
+            if (isUpdate(c)) return;
+            next.clear();
+            for (long config : configs) next.add(settle(config, nt));
+            swap();
+        }
+
+        /**
+         * Keeps the configurations in which operation r has taken effect, by
+         * letting the other pending updates take effect first, as needed.
+         * Only one order of the updates is tried: of two pending successful
+         * inserts (or removes) the one that responds first takes effect
+         * first, since swapping them would change nothing.  The state decides
+         * whether an insert or a remove comes next, so from each
+         * configuration there is a single chain of updates to follow.
+         */
+        private void respond(final int r, final int nt) {
+            next.clear();
+            for (long config : configs) {
+                while ((config & (1L<<r)) == 0) {
+                    final int u = nextUpdate(config, nt);
+                    if (u < 0) break;
+                    config = settle((config | (1L<<u)) ^ PRESENT, nt);
+                }
+                if ((config & (1L<<r)) != 0) next.add(config & ~(1L<<r)); // (r is no longer pending)
+            }
+            swap();
+        }
+
+        /** lets every pending operation that does not change the state take effect, where it can. **/
+        private long settle(long config, final int nt) {
+            final boolean present = (config & PRESENT) != 0;
+            for (int c=0;c<nt;c++) {
+                if (pending[c] && (config & (1L<<c)) == 0 && !isUpdate(c) && apply(c, present) >= 0) config |= 1L<<c;
+            }
+            return config;
+        }
+
+        /** returns the pending update that can take effect next and responds first, or -1. **/
+        private int nextUpdate(final long config, final int nt) {
+            final boolean present = (config & PRESENT) != 0;
+            int best = -1;
+            long deadline = Long.MAX_VALUE;
+            for (int c=0;c<nt;c++) {
+                if (!pending[c] || (config & (1L<<c)) != 0 || !isUpdate(c) || apply(c, present) < 0) continue;
+                final long response = threads[thread[c]].times[index(c) + 1];
+                if (response < deadline) {
+                    deadline = response;
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        private void swap() {
+            final HashSet<Long> swap = configs;
+            configs = next;
+            next = swap;
+        }
+
+        /** true if cursor c's operation changes the state (a successful insert or remove). **/
+        private boolean isUpdate(final int c) {
+            final ThreadHistory h = threads[thread[c]];
+            final int j = index(c);
+            return h.results[j] && (h.ops[j] >>> OP_SHIFT) != OP_FIND;
+        }
+
+        /** returns the state after cursor c's operation (1 if present), or -1 if its result is impossible in this state. **/
+        private int apply(final int c, final boolean present) {
+            final ThreadHistory h = threads[thread[c]];
+            final int j = index(c);
+            final boolean result = h.results[j];
+            switch (h.ops[j] >>> OP_SHIFT) {
+                case OP_INS: return result == !present ? 1 : -1;
+                case OP_DEL: return result == present ? 0 : -1;
+                default: return result == present ? (present ? 1 : 0) : -1;
+            }
+        }
+
+        /** the index of cursor c's operation in its thread's history. **/
+        private int index(final int c) {
+            return (int) ((sorted[pos[c]] & 0xffffffffL) - offsets[thread[c]]);
+        }
+
+        private int threadOf(final long entry) {
+            final long index = entry & 0xffffffffL;
+            int t = 0;
+            while (offsets[t+1] <= index) t++;
+            return t;
+        }
+
+        private String describe(final int c) {
+            final ThreadHistory h = threads[thread[c]];
+            final int j = index(c);
+            final String[] names = {"insert", "remove", "contains"};
+            return names[h.ops[j] >>> OP_SHIFT] + "=" + h.results[j] + " (thread " + thread[c] + ", operation " + j
+                    + ", invoked at " + h.times[j] + ", returned at " + h.times[j+1] + ")";
+        }
+
+        private void grow() {
+            thread = java.util.Arrays.copyOf(thread, 2*thread.length);
+            pos = java.util.Arrays.copyOf(pos, 2*pos.length);
+            end = java.util.Arrays.copyOf(end, 2*end.length);
+            pending = java.util.Arrays.copyOf(pending, 2*pending.length);
+        }
+    }
+}
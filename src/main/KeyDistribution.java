@@ -0,0 +1,135 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Draws keys in [1, maxkey] from a named distribution:
+ *   uniform      every key equally likely (the default)
+ *   zipfTHETA    Zipfian with skew THETA in (0,1), e.g. zipf0.99; the ranks
+ *                are scrambled over the key range so hot keys are not adjacent
+ *   seq          ascending keys, interleaved between the threads and wrapping
+ *                around at maxkey (like a bulk load of sorted data)
+ */
+public abstract class KeyDistribution {
+    public abstract int next();
+
+    public static boolean isValid(final String spec) {
+        if (spec.equals("uniform") || spec.equals("seq")) return true;
+        if (!spec.matches("zipf(0?\\.[0-9]+)")) return false;
+        final double theta = Double.parseDouble(spec.substring("zipf".length()));
+        return theta > 0 && theta < 1;
+    }
+
+    /**
+     * Creates the generator for thread id (out of nthreads) with its own rng.
+     */
+    public static KeyDistribution create(final String spec, final int maxkey, final int id, final int nthreads, final Random rng) {
+        if (!isValid(spec)) throw new RuntimeException("invalid key distribution \"" + spec + "\"");
+        if (spec.equals("uniform")) return new Uniform(maxkey, rng);
+        if (spec.equals("seq")) return new Sequential(maxkey, id, nthreads);
+        return new Zipf(maxkey, Double.parseDouble(spec.substring("zipf".length())), rng);
+    }
+
+    static final class Uniform extends KeyDistribution {
+        final int maxkey;
+        final Random rng;
+        Uniform(final int maxkey, final Random rng) {
+            this.maxkey = maxkey;
+            this.rng = rng;
+        }
+        @Override
+        public int next() {
+            return rng.nextNatural(maxkey)+1;
+        }
+    }
+
+    static final class Sequential extends KeyDistribution {
+        final int maxkey, stride;
+        long next;
+        Sequential(final int maxkey, final int id, final int nthreads) {
+            this.maxkey = maxkey;
+            this.stride = nthreads;
+            this.next = id % maxkey;
+        }
+        @Override
+        public int next() {
+            final int key = (int) next + 1;
+            next += stride;
+            if (next >= maxkey) next %= maxkey;
+            return key;
+        }
+    }
+
+    /**
+     * The Zipfian generator of Gray et al., "Quickly generating billion-record
+     * synthetic databases" (as used by YCSB).  The zeta constants cost O(maxkey)
+     * to compute, so they are cached per (maxkey, theta).
+     */
+    static final class Zipf extends KeyDistribution {
+        private static final ConcurrentHashMap<String, Double> zetaCache = new ConcurrentHashMap<String, Double>();
+        final int maxkey;
+        final Random rng;
+        final double theta, alpha, zetan, eta, halfPowTheta;
+
+        Zipf(final int maxkey, final double theta, final Random rng) {
+            this.maxkey = maxkey;
+            this.rng = rng;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetan = zeta(maxkey, theta);
+            this.eta = (1 - Math.pow(2. / maxkey, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+            this.halfPowTheta = 1 + Math.pow(0.5, theta);
+        }
+
+        static double zeta(final int n, final double theta) {
+            final String key = n + ":" + theta;
+            final Double cached = zetaCache.get(key);
+            if (cached != null) return cached;
+            double sum = 0;
+            for (int i=1;i<=n;i++) sum += 1 / Math.pow(i, theta);
+            zetaCache.put(key, sum);
+            return sum;
+        }
+
+        @Override
+        public int next() {
+            final double u = rng.nextNatural() / (double) Integer.MAX_VALUE;
+            final double uz = u * zetan;
+            final long rank;
+            if (uz < 1) rank = 0;
+            else if (uz < halfPowTheta) rank = 1;
+            else rank = Math.min(maxkey-1, (long) (maxkey * Math.pow(eta*u - eta + 1, alpha)));
+            return scramble(rank) + 1;
+        }
+
+        // FNV-1a over the rank's bytes, reduced to [0, maxkey)
+        private int scramble(long rank) {
+            long h = 0xcbf29ce484222325L;
+            for (int i=0;i<8;i++) {
+                h ^= rank & 0xff;
+                h *= 0x100000001b3L;
+                rank >>>= 8;
+            }
+            return (int) ((h >>> 1) % maxkey);
+        }
+    }
+}
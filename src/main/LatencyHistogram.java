@@ -0,0 +1,76 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds: values are bucketed by
+ * their power of two, and each power of two is split into 16 linear
+ * sub-buckets, so recorded values are accurate to within about 6%.
+ * Recording is a few shifts and an array increment; not thread-safe, so
+ * each thread records into its own histogram and they are merged afterwards.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1<<SUB_BITS;
+    private final long[] counts = new long[(64-SUB_BITS+1)*SUB_BUCKETS];
+    private long total;
+    private long max;
+
+    private static int index(final long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exp-SUB_BITS)) & (SUB_BUCKETS-1);
+        return (exp-SUB_BITS+1)*SUB_BUCKETS + sub;
+    }
+
+    /** the smallest value that falls into bucket i. **/
+    private static long lowerBound(final int i) {
+        if (i < SUB_BUCKETS) return i;
+        final int exp = i/SUB_BUCKETS + SUB_BITS - 1;
+        return (long) (SUB_BUCKETS + i%SUB_BUCKETS) << (exp-SUB_BITS);
+    }
+
+    public void record(final long nanos) {
+        ++counts[index(nanos)];
+        ++total;
+        if (nanos > max) max = nanos;
+    }
+
+    public void merge(final LatencyHistogram other) {
+        for (int i=0;i<counts.length;i++) counts[i] += other.counts[i];
+        total += other.total;
+        if (other.max > max) max = other.max;
+    }
+
+    public long getCount() { return total; }
+    public long getMax() { return max; }
+
+    /** returns the value at quantile q (0 < q <= 1), or 0 if nothing was recorded. **/
+    public long percentile(final double q) {
+        if (total == 0) return 0;
+        final long rank = (long) Math.ceil(q * total);
+        long seen = 0;
+        for (int i=0;i<counts.length;i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(lowerBound(i), max);
+        }
+        return max;
+    }
+}
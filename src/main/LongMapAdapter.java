@@ -0,0 +1,84 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+/**
+ * Runs a map workload through the harness: insert is put, remove is remove
+ * and contains is get.  Each entry has a payload of valueSize bytes.  An
+ * 8-byte payload is just the long value; larger payloads live in a shared
+ * slab of longs, the map value is the entry's offset into the slab, and
+ * every put writes (and every successful get reads) the whole payload.
+ */
+public class LongMapAdapter implements BSTInterface {
+    public static final long MAX_SLAB_WORDS = Integer.MAX_VALUE - 8; // (the largest array a JVM will allocate)
+
+    private final LongMapInterface map;
+    private final int valueSize;   // in bytes, a multiple of 8
+    private final int valueWords;
+    private final long[] slab;     // payloads of valueWords longs per key, or null for 8-byte payloads
+
+    public LongMapAdapter(final LongMapInterface map, final int maxkey, final int valueSize) {
+        if (valueSize < 8 || valueSize % 8 != 0) throw new RuntimeException("value size must be a positive multiple of 8 bytes");
+        if (valueSize > 8 && slabWords(maxkey, valueSize) > MAX_SLAB_WORDS) throw new RuntimeException("payloads of " + valueSize + " bytes for " + maxkey + " keys do not fit in one slab");
+        this.map = map;
+        this.valueSize = valueSize;
+        this.valueWords = valueSize / 8;
+        this.slab = valueWords > 1 ? new long[(int) slabWords(maxkey, valueSize)] : null;
+    }
+
+    /** returns the length of the slab for keys in [0, maxkey] (in long arithmetic, since it can exceed an int). **/
+    public static long slabWords(final int maxkey, final int valueSize) {
+        return (maxkey+1L) * (valueSize / 8);
+    }
+
+    public LongMapInterface getMap() {
+        return map;
+    }
+
+    @Override
+    public boolean contains(final int key) {
+        final long value = map.get(key);
+        if (value == LongMapInterface.NO_VALUE) return false;
+        if (slab == null) return true;
+        long sum = 0;
+        for (int i=0;i<valueWords;i++) sum += slab[(int) value + i];
+        return sum != Long.MIN_VALUE; // (uses the payload, so reading it cannot be optimized away)
+    }
+
+    @Override
+    public boolean insert(final int key) {
+        if (slab == null) return map.put(key, key) == LongMapInterface.NO_VALUE;
+        final int offset = (int) ((long) key * valueWords); // (fits, since the slab does)
+        for (int i=0;i<valueWords;i++) slab[offset + i] = key + i;
+        return map.put(key, offset) == LongMapInterface.NO_VALUE;
+    }
+
+    @Override
+    public boolean remove(final int key) {
+        return map.remove(key) != LongMapInterface.NO_VALUE;
+    }
+
+    @Override
+    public int size() { return map.size(); }
+    @Override
+    public String getName() { return map.getName() + "-" + valueSize + "B"; }
+    @Override
+    public long getKeysum() { return map.getKeysum(); }
+}
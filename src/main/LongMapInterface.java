@@ -0,0 +1,41 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+/**
+ * A concurrent ordered map from long keys to long values, without boxing.
+ * NO_VALUE is returned where a Map would return null (so it cannot be stored
+ * as a value) and NO_KEY where a NavigableMap would return a null key
+ * (so it, and Long.MAX_VALUE, cannot be used as keys).
+ */
+public interface LongMapInterface {
+    public static final long NO_VALUE = Long.MIN_VALUE;
+    public static final long NO_KEY = Long.MIN_VALUE;
+
+    public long get(final long key);
+    public long put(final long key, final long value);
+    public long putIfAbsent(final long key, final long value);
+    public long remove(final long key);
+    public long ceilingKey(final long key);
+    public long floorKey(final long key);
+    public int size();
+    public String getName();
+    public long getKeysum();
+}
@@ -23,6 +23,10 @@ import main.*;
 import algorithms.*;
 import java.io.*;
 import java.lang.management.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map.Entry;
@@ -35,7 +39,7 @@ public class Main {
     // some variables for the test harness
     protected final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
     public static final int RAW_NUMBER_OF_PROCESSORS = Runtime.getRuntime().availableProcessors();
-    public static final int NUMBER_OF_PROCESSORS = RAW_NUMBER_OF_PROCESSORS == 8 ? 4 : RAW_NUMBER_OF_PROCESSORS; // override for hyperthreading on i7
+    public static final int NUMBER_OF_PROCESSORS = CpuTopology.get().getCores(); // physical cores, not counting SMT siblings
     public static final boolean PRINT_FREEMEM = false; // note: just a (rather inaccurate) estimate
     private long startFreemem = 0;
 
@@ -48,6 +52,28 @@ public class Main {
     protected String alg;
     protected SwitchMap switches;
     protected boolean prefill;
+    protected String recordFile; // if non-null, the last trial of each experiment is recorded to this trace file
+    protected String replayFile; // if non-null, trials replay this trace file instead of running experiments
+    protected int vthreadCarriers; // if > 0, workers are virtual threads scheduled on this many carrier threads
+    protected int yieldEvery;      // if > 0, workers yield after every yieldEvery operations (like finishing a request)
+    protected PhasedWorkload phased; // if non-null, each trial runs these phases back to back
+    protected boolean baselines;   // also run the JDK baselines (first), and normalize throughput against the best of them
+    private final TreeMap<String, Double> bestBaseline = new TreeMap<String, Double>(); // workloadKey -> best mean baseline throughput
+    protected int[] rebalanceDuties = {0}; // duty cycles (in percent) of the background rebalancer, 0 for none
+    protected int[] durabilityLevels = {0}; // DurableTree levels to run each experiment at, 0 for none (no log)
+    protected String walDir = System.getProperty("java.io.tmpdir"); // logs and snapshots go in subdirectories of this
+    protected long snapshotMillis;          // if > 0, durable trees take a snapshot this often
+    protected int[] transports = {TRANSPORT_INPROC}; // how workers reach the tree in each experiment
+    protected int serverThreads = RAW_NUMBER_OF_PROCESSORS; // event loops of the TreeServer for TRANSPORT_TCP
+    protected int batchSize = 16;     // operations per request for TRANSPORT_TCP
+    protected int pipelineDepth = 4;  // requests each client keeps in flight for TRANSPORT_TCP
+    protected int historyCapacity;    // if > 0, in-process workers record up to this many operations each, and the history is checked
+    protected String[] dists = {"uniform"}; // KeyDistribution specs of the keys workers draw, one set of experiments each
+    protected int[] cacheSizes = {0};       // lookup cache slots of trees that have one, 0 for none
+    protected int cacheWays = 1;            // slots per lookup cache set (1 or 2)
+    protected String[] placements = {"none"}; // CpuTopology policies for pinning the workers, one set of experiments each
+    private final TreeMap<String, Double> uncachedThroughput = new TreeMap<String, Double>(); // uncachedKey -> mean throughput without a lookup cache
+    private final TreeMap<String, Double> unbalancedDepth = new TreeMap<String, Double>(); // unbalancedKey -> mean avgDepth without rebalancing
     
     // some timing variables
     protected AtomicLong startUserTime = new AtomicLong(0);
@@ -69,20 +95,54 @@ public class Main {
         final Random rng;
         final int maxKey;
         final int id, numberOfIds;
+        final KeyDistribution dist; // null for uniform keys
 
         public RandomGenerator(final int id, final int numberOfIds, final Random rng, final int maxKey) {
+            this(id, numberOfIds, rng, maxKey, "uniform");
+        }
+
+        public RandomGenerator(final int id, final int numberOfIds, final Random rng, final int maxKey, final String dist) {
             if (maxKey < 0) throw new RuntimeException("maxKey must be > 0");
             this.rng = rng;
             this.maxKey = maxKey;
             this.id = id;
             this.numberOfIds = numberOfIds;
+            this.dist = dist.equals("uniform") ? null : KeyDistribution.create(dist, maxKey, id, numberOfIds, rng);
         }
 
         public Integer next() {
+            if (dist != null) return dist.next();
             return rng.nextNatural(maxKey)+1;
         }
     }
 
+    /**
+     * A pre-generated stream of operations for one thread.  Each int encodes
+     * an operation in its top two bits and a key in the remaining 30 bits, so
+     * the timed loop only has to walk a primitive array.  The length is a
+     * power of two, and the stream wraps around when it is exhausted.
+     */
+    public static final class OpStream {
+        static final int OP_INS = 0, OP_DEL = 1, OP_FIND = 2;
+        static final int OP_SHIFT = 30;
+        static final int KEY_MASK = (1<<OP_SHIFT)-1;
+        static final int MAX_KEY = KEY_MASK;
+        
+        final int[] ops;
+        
+        public OpStream(final int length, final RandomGenerator gen, final Random rng, final Ratio ratio) {
+            if (Integer.bitCount(length) != 1) throw new RuntimeException("op stream length must be a power of two");
+            if (gen.maxKey > MAX_KEY) throw new RuntimeException("maxKey must be <= " + MAX_KEY + " for pre-generated op streams");
+            this.ops = new int[length];
+            for (int i=0;i<length;i++) {
+                final int key = gen.next();
+                final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
+                final int type = (op < ratio.ins) ? OP_INS : (op < ratio.ins + ratio.del) ? OP_DEL : OP_FIND;
+                ops[i] = (type << OP_SHIFT) | key;
+            }
+        }
+    }
+
     public abstract class Worker extends Thread {
         public abstract int getOpCount();
         public abstract int getTrueIns();
@@ -102,28 +162,88 @@ public class Main {
         public abstract long getKeysum();
     }
     
-    public class TimedWorker extends Worker {
-        public final long WORK_TIME;
-        CyclicBarrier start;
-        RandomGenerator gen;
-        BSTInterface tree;
+    /**
+     * A worker that keeps the usual operation counters and measures its own
+     * CPU, user and wall time between startTiming() and finishTiming().
+     */
+    public abstract class CountingWorker extends Worker {
         int trueDel, falseDel, trueIns, falseIns, trueFind, falseFind;
         long keysum; // sum of new keys inserted by this thread minus keys deleted by this thread
-        final Experiment ex;
-        Random rng;
 
         private long id;
         private ThreadMXBean bean;
         
-        public final AtomicLong sharedStartUserTime;
-        public final AtomicLong sharedStartWallTime;
         public long myStartCPUTime;
         public long myStartUserTime;
         public long myStartWallTime;
         public long cpuTime;
         public long userTime;
         public long wallTime;
+        int cpu = -1; // the worker pins itself to this cpu when it starts, if >= 0
+        
+        protected final void pin() {
+            if (cpu >= 0 && !CpuTopology.pinCurrentThread(cpu)) {
+                System.out.println("could not pin a worker thread to cpu " + cpu);
+                System.exit(-1);
+            }
+        }
+        
+        protected final void initTiming() {
+            bean = ManagementFactory.getThreadMXBean();
+            if (!bean.isCurrentThreadCpuTimeSupported()) {
+                System.out.println("THREAD CPU TIME UNSUPPORTED");
+                System.exit(-1);
+            }
+            if (!bean.isThreadCpuTimeEnabled()) {
+                System.out.println("THREAD CPU TIME DISABLED");
+                System.exit(-1);
+            }
+            id = java.lang.Thread.currentThread().getId();
+        }
+        
+        protected final void startTiming() {
+            myStartUserTime = bean.getThreadUserTime(id);
+            myStartCPUTime = bean.getThreadCpuTime(id);
+            myStartWallTime = System.nanoTime();
+        }
+        
+        protected final void finishTiming() {
+            wallTime = System.nanoTime();
+            userTime = bean.getThreadUserTime(id);
+            cpuTime = bean.getThreadCpuTime(id);
+        }
+        
+        public int getOpCount() { return trueIns + falseIns + trueDel + falseDel + trueFind + falseFind; }
+        public int getTrueIns() { return trueIns; }
+        public int getFalseIns() { return falseIns; }
+        public int getTrueDel() { return trueDel; }
+        public int getFalseDel() { return falseDel; }
+        public int getTrueFind() { return trueFind; }
+        public int getFalseFind() { return falseFind; }
+        public long getStartTime() { return myStartWallTime; }
+        public long getEndTime() { return wallTime; }
+        public long getMyStartCPUTime() { return myStartCPUTime; }
+        public long getMyStartUserTime() { return myStartUserTime; }
+        public long getMyStartWallTime() { return myStartWallTime; }
+        public long getUserTime() { return userTime; }
+        public long getWallTime() { return wallTime; }
+        public long getCPUTime() { return cpuTime; }
+        public long getKeysum() { return keysum; }
+    }
+    
+    public class TimedWorker extends CountingWorker {
+        public final long WORK_TIME;
+        CyclicBarrier start;
+        RandomGenerator gen;
+        BSTInterface tree;
+        final Experiment ex;
+        Random rng;
+
+        public final AtomicLong sharedStartUserTime;
+        public final AtomicLong sharedStartWallTime;
         public ArrayList<Worker> workers3; // ref to containing array [dirty technique :P...]
+        OpStream stream; // non-null if operations are pre-generated before the barrier
+        History.ThreadHistory history; // non-null if this thread records its operations
 
         public TimedWorker(final long WORK_TIME,
                            final RandomGenerator gen,
@@ -148,32 +268,33 @@ public class Main {
         @Override
         @SuppressWarnings("empty-statement")
         public final void run() {
-            bean = ManagementFactory.getThreadMXBean();
-            if (!bean.isCurrentThreadCpuTimeSupported()) {
-                System.out.println("THREAD CPU TIME UNSUPPORTED");
-                System.exit(-1);
-            }
-            if (!bean.isThreadCpuTimeEnabled()) {
-                System.out.println("THREAD CPU TIME DISABLED");
-                System.exit(-1);
-            }
-            id = java.lang.Thread.currentThread().getId();
+            pin();
+            initTiming();
+            
+            // generate this thread's operations (in this thread, so the arrays are allocated near it)
+            if (ex.pregenerated) stream = new OpStream(ex.opStreamLength, gen, rng, ratio);
             
             // everyone waits on barrier
             if (start != null) try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
             
             // everyone waits until main thread sets experiment state to RUNNING
-            while (ex.state == ExperimentState.PENDING);
+            // (yielding, since the main thread may still need a virtual thread
+            // that has no carrier to hand it the barrier's lock)
+            while (ex.state == ExperimentState.PENDING) Thread.yield();
 
             // start timing
-            myStartUserTime = bean.getThreadUserTime(id);
-            myStartCPUTime = bean.getThreadCpuTime(id);
-            myStartWallTime = System.nanoTime();
+            startTiming();
             sharedStartUserTime.compareAndSet(0, myStartUserTime);
             sharedStartWallTime.compareAndSet(0, myStartWallTime);
             
             // perform operations while experiment's state is running
-            while (ex.state == ExperimentState.RUNNING) {
+            if (history != null) {
+                runRecording();
+            } else if (stream != null) {
+                runPregenerated();
+            } else if (yieldEvery > 0) {
+                runYielding();
+            } else while (ex.state == ExperimentState.RUNNING) {
                 final int key = gen.next();
                 final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
                 if (op < ratio.ins) {
@@ -193,27 +314,369 @@ public class Main {
             }
             
             // finish timing
-            wallTime = System.nanoTime();
-            userTime = bean.getThreadUserTime(id);
-            cpuTime = bean.getThreadCpuTime(id);
+            finishTiming();
+        }
+        
+        // like the main loop, but yields after every yieldEvery operations, so
+        // (virtual) workers behave like handlers that each serve short requests
+        private void runYielding() {
+            while (ex.state == ExperimentState.RUNNING) {
+                for (int i=0;i<yieldEvery;i++) {
+                    final int key = gen.next();
+                    final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
+                    if (op < ratio.ins) {
+                        if (tree.insert(key)) {
+                            keysum += key;
+                            trueIns++;
+                        } else falseIns++;
+                    } else if (op < ratio.ins + ratio.del) {
+                        if (tree.remove(key)) {
+                            keysum -= key;
+                            trueDel++;
+                        } else falseDel++;
+                    } else {
+                        if (tree.contains(key)) trueFind++;
+                        else falseFind++;
+                    }
+                }
+                Thread.yield();
+            }
         }
+        
+        // like the main loop (or runPregenerated), but records every operation
+        // in this thread's history, and stops early when the history is full
+        // (and then the main thread ends the trial for everyone).  Like them,
+        // it yields after every yieldEvery operations if that is set.
+        private void runRecording() {
+            final History.ThreadHistory h = history;
+            int i = 0;
+            h.start();
+            while (ex.state == ExperimentState.RUNNING && !h.isFull()) {
+                final int key, type;
+                if (stream != null) {
+                    final int op = stream.ops[i & (stream.ops.length-1)];
+                    key = op & OpStream.KEY_MASK;
+                    type = op >>> OpStream.OP_SHIFT;
+                } else {
+                    key = gen.next();
+                    final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
+                    type = op < ratio.ins ? OpStream.OP_INS : op < ratio.ins + ratio.del ? OpStream.OP_DEL : OpStream.OP_FIND;
+                }
+                final boolean result;
+                switch (type) {
+                    case OpStream.OP_INS:
+                        result = tree.insert(key);
+                        if (result) {
+                            keysum += key;
+                            trueIns++;
+                        } else falseIns++;
+                        break;
+                    case OpStream.OP_DEL:
+                        result = tree.remove(key);
+                        if (result) {
+                            keysum -= key;
+                            trueDel++;
+                        } else falseDel++;
+                        break;
+                    default:
+                        result = tree.contains(key);
+                        if (result) trueFind++;
+                        else falseFind++;
+                }
+                h.record(type, key, result);
+                ++i;
+                if (yieldEvery > 0 && i % yieldEvery == 0) Thread.yield();
+            }
+        }
+        
+        private void runPregenerated() {
+            final int[] ops = stream.ops;
+            final int mask = ops.length-1;
+            int i = 0;
+            while (ex.state == ExperimentState.RUNNING) {
+                final int op = ops[(i++) & mask];
+                final int key = op & OpStream.KEY_MASK;
+                switch (op >>> OpStream.OP_SHIFT) {
+                    case OpStream.OP_INS:
+                        if (tree.insert(key)) {
+                            keysum += key;
+                            trueIns++;
+                        } else falseIns++;
+                        break;
+                    case OpStream.OP_DEL:
+                        if (tree.remove(key)) {
+                            keysum -= key;
+                            trueDel++;
+                        } else falseDel++;
+                        break;
+                    default:
+                        if (tree.contains(key)) trueFind++;
+                        else falseFind++;
+                }
+                if (yieldEvery > 0 && i % yieldEvery == 0) Thread.yield();
+            }
+        }
+    }
+    
+    /**
+     * A client of a TreeServer.  It sends its operations in batches of
+     * batchSize over its own connection, keeping up to pipelineDepth batches
+     * in flight, and records the round-trip latency of every batch.  When
+     * the trial stops, it still receives the responses to the batches in
+     * flight, so its counters and keysum cover every operation it sent.
+     */
+    public class NetworkWorker extends CountingWorker {
+        final InetSocketAddress address;
+        final int batchSize, pipelineDepth;
+        final CyclicBarrier start;
+        final RandomGenerator gen;
+        final Experiment ex;
+        final Random rng;
+        final LatencyHistogram latency = new LatencyHistogram(); // of batch round trips
+        OpStream stream; // non-null if operations are pre-generated before the barrier
+        int streamIndex;
 
-        public int getOpCount() { return 0; }
-        public int getTrueIns() { return trueIns; }
-        public int getFalseIns() { return falseIns; }
-        public int getTrueDel() { return trueDel; }
-        public int getFalseDel() { return falseDel; }
-        public int getTrueFind() { return trueFind; }
-        public int getFalseFind() { return falseFind; }
-        public long getStartTime() { return myStartWallTime; }
-        public long getEndTime() { return wallTime; }
-        public long getMyStartCPUTime() { return myStartCPUTime; }
-        public long getMyStartUserTime() { return myStartUserTime; }
-        public long getMyStartWallTime() { return myStartWallTime; }
-        public long getUserTime() { return userTime; }
-        public long getWallTime() { return wallTime; }
-        public long getCPUTime() { return wallTime; }
-        public long getKeysum() { return keysum; }
+        public NetworkWorker(final InetSocketAddress address,
+                             final int batchSize,
+                             final int pipelineDepth,
+                             final RandomGenerator gen,
+                             final Experiment ex,
+                             final java.util.Random rng,
+                             final CyclicBarrier start) {
+            this.address = address;
+            this.batchSize = batchSize;
+            this.pipelineDepth = pipelineDepth;
+            this.gen = gen;
+            this.ex = ex;
+            this.rng = new Random(rng.nextInt());
+            this.start = start;
+        }
+
+        @Override
+        @SuppressWarnings("empty-statement")
+        public final void run() {
+            pin();
+            initTiming();
+            if (ex.pregenerated) stream = new OpStream(ex.opStreamLength, gen, rng, ratio);
+            final TreeServer.Client client;
+            try { client = new TreeServer.Client(address); }
+            catch (IOException e) { e.printStackTrace(); System.exit(-1); return; }
+            if (start != null) try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+            while (ex.state == ExperimentState.PENDING) Thread.yield();
+            startTiming();
+
+            final int[][] batches = new int[pipelineDepth][batchSize];
+            final long[] sentAt = new long[pipelineDepth];
+            final boolean[] results = new boolean[batchSize];
+            int oldest = 0, inFlight = 0;
+            try {
+                while (ex.state == ExperimentState.RUNNING) {
+                    if (inFlight < pipelineDepth) {
+                        final int b = (oldest + inFlight) % pipelineDepth;
+                        nextBatch(batches[b]);
+                        sentAt[b] = System.nanoTime();
+                        client.send(batches[b], batchSize);
+                        ++inFlight;
+                        continue;
+                    }
+                    receive(client, batches[oldest], results, sentAt[oldest]);
+                    oldest = (oldest + 1) % pipelineDepth;
+                    --inFlight;
+                }
+                for (; inFlight > 0; --inFlight) {
+                    receive(client, batches[oldest], results, sentAt[oldest]);
+                    oldest = (oldest + 1) % pipelineDepth;
+                }
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(-1);
+            }
+            finishTiming();
+        }
+
+        private void nextBatch(final int[] ops) {
+            if (stream != null) {
+                final int mask = stream.ops.length-1;
+                for (int i=0;i<ops.length;i++) ops[i] = stream.ops[(streamIndex++) & mask];
+                return;
+            }
+            for (int i=0;i<ops.length;i++) {
+                final int key = gen.next();
+                final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
+                final int type = op < ratio.ins ? OpStream.OP_INS : op < ratio.ins + ratio.del ? OpStream.OP_DEL : OpStream.OP_FIND;
+                ops[i] = (type << OpStream.OP_SHIFT) | key;
+            }
+        }
+
+        private void receive(final TreeServer.Client client, final int[] ops, final boolean[] results, final long sentAt) throws IOException {
+            client.receive(results);
+            latency.record(System.nanoTime() - sentAt);
+            for (int i=0;i<ops.length;i++) {
+                final int key = ops[i] & OpStream.KEY_MASK;
+                switch (ops[i] >>> OpStream.OP_SHIFT) {
+                    case OpStream.OP_INS:
+                        if (results[i]) {
+                            keysum += key;
+                            trueIns++;
+                        } else falseIns++;
+                        break;
+                    case OpStream.OP_DEL:
+                        if (results[i]) {
+                            keysum -= key;
+                            trueDel++;
+                        } else falseDel++;
+                        break;
+                    default:
+                        if (results[i]) trueFind++;
+                        else falseFind++;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Replays one thread segment of a trace, decoding operations straight
+     * from the memory-mapped file until the segment is exhausted.
+     */
+    public class ReplayWorker extends CountingWorker {
+        final OpTrace.Cursor cursor;
+        final BSTInterface tree;
+        final CyclicBarrier start;
+
+        public ReplayWorker(final OpTrace.Cursor cursor, final BSTInterface tree, final CyclicBarrier start) {
+            this.cursor = cursor;
+            this.tree = tree;
+            this.start = start;
+        }
+
+        @Override
+        public final void run() {
+            initTiming();
+            try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+            startTiming();
+            final OpTrace.Cursor cursor = this.cursor;
+            while (cursor.next()) {
+                final int key = cursor.key();
+                switch (cursor.op()) {
+                    case OpTrace.OP_INS:
+                        if (tree.insert(key)) {
+                            keysum += key;
+                            trueIns++;
+                        } else falseIns++;
+                        break;
+                    case OpTrace.OP_DEL:
+                        if (tree.remove(key)) {
+                            keysum -= key;
+                            trueDel++;
+                        } else falseDel++;
+                        break;
+                    default:
+                        if (tree.contains(key)) trueFind++;
+                        else falseFind++;
+                }
+            }
+            finishTiming();
+        }
+    }
+    
+    /** index of the phase that is currently running (phases.size() once the trial is over). **/
+    final class PhaseClock { volatile int phase = -1; }
+    
+    /**
+     * A worker for phased trials.  It follows the phase clock, takes part in a
+     * phase only if its index is below the phase's thread count, and keeps
+     * per-phase op counts and (sampled) latency histograms.
+     */
+    public class PhasedWorker extends CountingWorker {
+        static final int LATENCY_SAMPLE_MASK = 63; // time one in 64 operations
+        final int index;
+        final PhasedWorkload workload;
+        final PhaseClock clock;
+        final BSTInterface tree;
+        final CyclicBarrier start;
+        final KeyDistribution[] keys;      // per phase
+        final Random rng;
+        final int[] opsAtPhaseEnd;         // getOpCount() when each phase ended
+        final LatencyHistogram[] latency;  // per phase
+
+        public PhasedWorker(final int index, final PhasedWorkload workload, final PhaseClock clock,
+                final BSTInterface tree, final CyclicBarrier start, final int maxkey, final java.util.Random rng) {
+            this.index = index;
+            this.workload = workload;
+            this.clock = clock;
+            this.tree = tree;
+            this.start = start;
+            this.rng = new Random(rng.nextInt());
+            final int nphases = workload.phases.size();
+            this.keys = new KeyDistribution[nphases];
+            this.latency = new LatencyHistogram[nphases];
+            this.opsAtPhaseEnd = new int[nphases];
+            for (int p=0;p<nphases;p++) {
+                final PhasedWorkload.Phase phase = workload.phases.get(p);
+                keys[p] = KeyDistribution.create(phase.dist, maxkey, index, phase.nthreads, new Random(rng.nextInt()));
+                latency[p] = new LatencyHistogram();
+            }
+        }
+        
+        @Override
+        public final void run() {
+            initTiming();
+            try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+            startTiming();
+            
+            final int nphases = workload.phases.size();
+            int p = -1;
+            boolean active = false;
+            KeyDistribution gen = null;
+            LatencyHistogram hist = null;
+            double ins = 0, insdel = 0;
+            int n = 0;
+            while (true) {
+                final int current = clock.phase;
+                if (current != p) {
+                    for (int q=Math.max(p, 0); q<Math.min(current, nphases); q++) opsAtPhaseEnd[q] = getOpCount();
+                    p = current;
+                    if (p >= nphases) break;
+                    if (p < 0) continue;
+                    final PhasedWorkload.Phase phase = workload.phases.get(p);
+                    active = index < phase.nthreads;
+                    gen = keys[p];
+                    hist = latency[p];
+                    ins = phase.ins;
+                    insdel = phase.ins + phase.del;
+                }
+                if (!active) {
+                    java.util.concurrent.locks.LockSupport.parkNanos(100000);
+                    continue;
+                }
+                
+                final int key = gen.next();
+                final double op = rng.nextNatural() / (double) Integer.MAX_VALUE;
+                final boolean sample = ((++n) & LATENCY_SAMPLE_MASK) == 0;
+                final long t0 = sample ? System.nanoTime() : 0;
+                if (op < ins) {
+                    if (tree.insert(key)) {
+                        keysum += key;
+                        trueIns++;
+                    } else falseIns++;
+                } else if (op < insdel) {
+                    if (tree.remove(key)) {
+                        keysum -= key;
+                        trueDel++;
+                    } else falseDel++;
+                } else {
+                    if (tree.contains(key)) trueFind++;
+                    else falseFind++;
+                }
+                if (sample) hist.record(System.nanoTime() - t0);
+            }
+            finishTiming();
+        }
+        
+        int getPhaseOps(final int p) {
+            return opsAtPhaseEnd[p] - (p > 0 ? opsAtPhaseEnd[p-1] : 0);
+        }
     }
     
     final class BoolHolder { volatile boolean b; }
@@ -278,27 +741,59 @@ public class Main {
             final BSTInterface tree,
             final Experiment ex) {
         
-        // prepare worker threads to run the trial
+        // prepare worker threads to run the trial (they wait for RUNNING after the
+        // barrier, so clear the STOPPED left by the last trial first)
+        ex.state = ExperimentState.PENDING;
         startWallTime = new AtomicLong(0);
         startUserTime = new AtomicLong(0);
-        CyclicBarrier start = new CyclicBarrier(ex.nprocs);
+        CyclicBarrier start = new CyclicBarrier(ex.nprocs+1); // (the main thread is a party, so setup is not timed)
         ArrayList<RandomGenerator> arrays =  new ArrayList<RandomGenerator>(ex.nprocs); // generators supply keys for each thread
         ArrayList<Worker> workers = new ArrayList<Worker>(ex.nprocs);    // these are the threads that perform random operations
+        final TreeServer server = ex.transport == TRANSPORT_TCP ? startServer(tree) : null;
         for (int i=0;i<ex.nprocs;i++) {
-            arrays.add(new RandomGenerator(i, ex.nprocs, new Random(rng.nextInt()), ex.maxkey));
-            workers.add(new TimedWorker((long) (nseconds*1e9), arrays.get(i), ex, rng, tree, start, startUserTime, startWallTime, workers));
+            arrays.add(new RandomGenerator(i, ex.nprocs, new Random(rng.nextInt()), ex.maxkey, ex.dist));
+            if (server != null) {
+                workers.add(new NetworkWorker(serverAddress(server), batchSize, pipelineDepth, arrays.get(i), ex, rng, start));
+            } else {
+                workers.add(new TimedWorker((long) (nseconds*1e9), arrays.get(i), ex, rng, tree, start, startUserTime, startWallTime, workers));
+            }
+            if (ex.cpus != null) ((CountingWorker) workers.get(i)).cpu = ex.cpus[i];
         }
         
+        // record the history of in-process workers, to check it for linearizability afterwards
+        final History history = historyCapacity > 0 && server == null ? new History(ex.nprocs, historyCapacity) : null;
+        final java.util.BitSet initialKeys = history == null ? null : presentKeys(unwrap(tree), ex.maxkey); // (not through a recorder, which would trace the reads)
+        for (int i=0;history!=null && i<ex.nprocs;i++) ((TimedWorker) workers.get(i)).history = history.get(i);
+        
         // perform garbage collection to clean up after the last trial, and record how much GC has happened so far
         System.gc();
+        
+        // virtual workers run on virtual threads (the Worker is just their task),
+        // and since per-thread cpu time is unavailable for those, we measure the process instead
+        final ArrayList<Thread> threads = new ArrayList<Thread>(ex.nprocs);
+        for (Worker w : workers) threads.add(vthreadCarriers > 0 ? VirtualThreads.unstarted(w) : w);
+        final CachingTree cached = unwrap(tree) instanceof CachingTree ? (CachingTree) unwrap(tree) : null;
+        final long cacheHitsStart = cached == null ? 0 : cached.getCacheHits();
+        
+        // start the workers, and wait until they have finished their setup (pinning,
+        // pre-generating operations, connecting) before the timed part begins
+        final Rebalancer rebalancer = ex.rebalance > 0 ? new Rebalancer(rebalancingTree(tree), ex.rebalance) : null;
+        final int purgeWidth = (int) switches.get("purgeWidth");
+        final Purger purger = purgeWidth > 0 ? new Purger(tree, purgeWidth, ex.maxkey, switches.get("purgeLoop") != 0, rng) : null;
+        for (int i=0;i<ex.nprocs;i++) threads.get(i).start();
+        try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
         final long gcTimeStart = totalGarbageCollectionTimeMillis();
+        final long processCPUTimeStart = processCPUTime();
         
-        // run the trial
-        for (int i=0;i<ex.nprocs;i++) workers.get(i).start();
+        // run the trial (with the background rebalancer, if any)
+        if (rebalancer != null) rebalancer.start();
+        if (purger != null) purger.start();
         ex.state = ExperimentState.RUNNING;
         long localStartTime = System.nanoTime();
         try {
-            Thread.sleep((long)(nseconds * 1e3));
+            // (with a history, the trial ends early when the first buffer fills)
+            if (history != null) history.awaitFull((long)(nseconds * 1e9));
+            else Thread.sleep((long)(nseconds * 1e3));
         } catch (InterruptedException ex1) {
             ex1.printStackTrace();
             System.exit(-1);
@@ -307,12 +802,29 @@ public class Main {
         ex.state = ExperimentState.STOPPED;
 
         // stop all threads and record how much GC has happened so far
-        try { for (int i=0;i<ex.nprocs;i++) workers.get(i).join(); }
+        try { for (int i=0;i<ex.nprocs;i++) threads.get(i).join(); }
         catch (InterruptedException e) { e.printStackTrace(); System.exit(-1); }
+        if (rebalancer != null) rebalancer.finish();
+        if (purger != null) purger.finish();
+        if (server != null) {
+            try { server.close(); } catch (IOException e) { e.printStackTrace(); System.exit(-1); }
+        }
         final long gcTimeEnd = totalGarbageCollectionTimeMillis();
+        ex.processCPUTime = processCPUTime() - processCPUTimeStart;
+        ex.rebalanceCPUTime = rebalancer == null ? 0 : rebalancer.getCPUTime();
+        ex.rotations = rebalancer == null ? 0 : rebalancer.getRotations();
+        ex.purgeMode = purger == null ? null : purger.getMode();
+        ex.purgedKeys = purger == null ? 0 : purger.getPurgedKeys();
+        ex.purgedRanges = purger == null ? 0 : purger.getRanges();
+        ex.cacheHits = cached == null ? 0 : cached.getCacheHits() - cacheHitsStart;
+        ex.latency = null;
+        if (server != null) {
+            ex.latency = new LatencyHistogram();
+            for (Worker w : workers) ex.latency.merge(((NetworkWorker) w).latency);
+        }
         
         // compute key checksum for all threads (including from prefilling) and compare it with the key checksum for the data structure
-        long threadsKeysum = pair.keysum;
+        long threadsKeysum = pair.keysum + (purger == null ? 0 : purger.getKeysum());
         for (int i=0;i<ex.nprocs;++i) {
             threadsKeysum += workers.get(i).getKeysum();
         }
@@ -320,6 +832,10 @@ public class Main {
         if (dsKeysum != threadsKeysum) {
             throw new RuntimeException("threadsKeysum=" + threadsKeysum + " does not match dsKeysum=" + dsKeysum);
         }
+        ex.historyOps = 0;
+        if (history != null) checkHistory(history, initialKeys, unwrap(tree), ex);
+        final DurableTree durable = durableTree(tree);
+        if (durable != null) checkRecovery(durable, ex);
         // produce output
         if (!discardResults) {
             long endWallTime = Long.MAX_VALUE;
@@ -328,45 +844,458 @@ public class Main {
                 if (w.getEndTime() < endWallTime) endWallTime = w.getEndTime();
             }
             
-            double elapsed = (localEndTime - localStartTime)/1e9;
-            out.print(prefix + ",");
-            long ntrueins = 0, nfalseins = 0, ntruedel = 0, nfalsedel = 0, ntruefind = 0, nfalsefind = 0;
-            for (Worker w : workers) {
-                ntrueins += w.getTrueIns();
-                nfalseins += w.getFalseIns();
-                ntruedel += w.getTrueDel();
-                nfalsedel += w.getFalseDel();
-                ntruefind += w.getTrueFind();
-                nfalsefind += w.getFalseFind();
-            }
-            int nnodes = 0;
-            double averageDepth = 0;
-            long ntrue = ntrueins+ntruedel+ntruefind, nfalse = nfalseins+nfalsedel+nfalsefind;
-            long nops = ntrue+nfalse;
-            ex.throughput = (int)(nops/(double)elapsed);
-            out.print(ex.nprocs + "," + nops + "," + ex.maxkey + ",");
-            out.print(ex.ratio + ",");
-            out.print(rng.nextInt() + "," + elapsed + ",");
-            
-            // merged-experiment
-            //String mergedEx = ex.ratio.ins + "i-" + ex.ratio.del + "d-" + ex.maxkey;
-            //out.print("," + mergedEx);
-            
-            // garbage collection time and desired total elapsed time
-            final double gcElapsedTime = (gcTimeEnd-gcTimeStart)/1e3;
-            out.print(gcElapsedTime + ",");
+            final double elapsed = (localEndTime - localStartTime)/1e9;
+            printTrialResults(out, prefix, ex.pregenerated ? "pregen" : "gen", workers, elapsed, gcTimeEnd-gcTimeStart, rng, ex, measureShape(tree));
+        }
+        return true;
+    }
+    
+    /**
+     * Prints one line of trial results in the CSV format described by the
+     * header printed in run().
+     */
+    protected void printTrialResults(
+            final PrintStream out,
+            final String prefix,
+            final String opStream,
+            final List<? extends Worker> workers,
+            final double elapsed,
+            final long gcTimeMillis,
+            final java.util.Random rng,
+            final Experiment ex,
+            final TreeShape shape) {
+        
+        out.print(prefix + ",");
+        long ntrueins = 0, nfalseins = 0, ntruedel = 0, nfalsedel = 0, ntruefind = 0, nfalsefind = 0;
+        for (Worker w : workers) {
+            ntrueins += w.getTrueIns();
+            nfalseins += w.getFalseIns();
+            ntruedel += w.getTrueDel();
+            nfalsedel += w.getFalseDel();
+            ntruefind += w.getTrueFind();
+            nfalsefind += w.getFalseFind();
+        }
+        final long nnodes = shape == null ? 0 : shape.getNodes();
+        long ntrue = ntrueins+ntruedel+ntruefind, nfalse = nfalseins+nfalsedel+nfalsefind;
+        long nops = ntrue+nfalse;
+        ex.throughput = (int)(nops/(double)elapsed);
+        out.print(ex.nprocs + "," + nops + "," + ex.maxkey + ",");
+        out.print(ex.ratio + ",");
+        out.print(opStream + ",");
+        out.print(("replay".equals(opStream) ? 0 : vthreadCarriers) + ",");
+        out.print(rng.nextInt() + "," + elapsed + ",");
+        
+        // cpu accounting: per-thread deltas between the start and end of the timed loop
+        long totalCPUTime = 0, totalUserTime = 0;
+        final int[] threadOps = new int[workers.size()];
+        for (int i=0;i<workers.size();++i) {
+            final Worker w = workers.get(i);
+            totalCPUTime += w.getCPUTime() - w.getMyStartCPUTime();
+            totalUserTime += w.getUserTime() - w.getMyStartUserTime();
+            threadOps[i] = w.getOpCount();
+        }
+        final boolean virtual = vthreadCarriers > 0 && !"replay".equals(opStream); // (replays always use platform threads)
+        final double cpuSeconds = (virtual ? ex.processCPUTime : totalCPUTime)/1e9;
+        final double userSeconds = totalUserTime/1e9;
+        final double cpuUtilization = cpuSeconds / (elapsed * Math.min(virtual ? vthreadCarriers : ex.nprocs, RAW_NUMBER_OF_PROCESSORS));
+        final long opsPerCPUSecond = cpuSeconds > 0 ? (long)(nops/cpuSeconds) : 0;
+        if (virtual) { // whole-process cpu time, which cannot be split into user and system time
+            out.print(cpuSeconds + ",,,");
+        } else {
+            out.print(cpuSeconds + "," + userSeconds + "," + (cpuSeconds-userSeconds) + ",");
+        }
+        out.print(cpuUtilization + "," + opsPerCPUSecond + ",");
+        
+        // per-thread ops distribution, to tell starvation apart from oversubscription
+        java.util.Arrays.sort(threadOps);
+        out.print(threadOps[0] + "," + threadOps[threadOps.length/2] + "," + threadOps[threadOps.length-1] + ",");
+        out.print(jainFairnessIndex(threadOps) + ",");
+        
+        // tree shape after the trial (empty columns if the tree cannot be measured)
+        ex.avgDepth = shape == null ? 0 : shape.getAverageDepth();
+        if (shape != null) {
+            out.print(nnodes + "," + shape.getMarkedNodes() + "," + shape.getAverageDepth() + "," + shape.getMaxDepth() + ",");
+            out.print(shape.getImbalance() + "," + shape.histogramString() + ",");
+        } else {
+            out.print(",,,,,,");
+        }
+        
+        // cost of the background rebalancer, and how much shallower it made the
+        // tree than the same experiment without rebalancing (if that has run)
+        out.print(ex.rebalance + "," + ex.rebalanceCPUTime/1e9 + "," + ex.rotations + ",");
+        final Double unbalanced = unbalancedDepth.get(unbalancedKey(ex));
+        out.print(ex.rebalance > 0 && shape != null && unbalanced != null && unbalanced > 0 ? String.valueOf(1 - ex.avgDepth / unbalanced) : "");
+        out.print(",");
+        
+        // durability layer: log volume, fsyncs (with the number of records each one made durable) and recovery time
+        if (ex.durability > 0 && !"replay".equals(opStream)) {
+            out.print(DurableTree.levelName(ex.durability) + "," + ex.walRecords + "," + ex.fsyncs + ",");
+            out.print((ex.fsyncs > 0 ? String.valueOf(ex.walRecords / (double) ex.fsyncs) : "") + "," + ex.snapshots + "," + ex.recoveryTime + ",");
+        } else {
+            out.print("none,,,,,,");
+        }
+        
+        // the purger's removals are not part of threadops or throughput
+        if (ex.purgeMode != null && !"replay".equals(opStream)) {
+            out.print(ex.purgeMode + "," + ex.purgedKeys + "," + ex.purgedRanges + "," + (long) (ex.purgedKeys / elapsed) + ",");
+        } else {
+            out.print(",,,,");
+        }
+        
+        // end-to-end latency of a request (batch) through the TreeServer, in ns
+        if (ex.transport == TRANSPORT_TCP && ex.latency != null && !"replay".equals(opStream)) {
+            out.print("tcp," + batchSize + "," + pipelineDepth + ",");
+            out.print(ex.latency.percentile(0.5) + "," + ex.latency.percentile(0.99) + "," + ex.latency.percentile(0.999) + ",");
+        } else {
+            out.print("inproc,,,,,,");
+        }
+        
+        // length of the checked history, and how long the linearizability check took (in seconds)
+        if (ex.historyOps > 0 && !"replay".equals(opStream)) {
+            out.print(ex.historyOps + "," + ex.historyCheckTime + ",");
+        } else {
+            out.print(",,");
+        }
+        
+        // key distribution, and how often the lookup cache answered contains (and how
+        // much faster the same experiment ran than without a cache, if that has run)
+        out.print(ex.dist + "," + ex.cache + ",");
+        if (ex.cache > 0 && !"replay".equals(opStream)) {
+            final Double uncached = uncachedThroughput.get(uncachedKey(ex));
+            out.print((ntruefind + nfalsefind > 0 ? String.valueOf(ex.cacheHits / (double) (ntruefind + nfalsefind)) : "") + ",");
+            out.print((uncached != null && uncached > 0 ? String.valueOf(ex.throughput / uncached) : "") + ",");
+        } else {
+            out.print(",,");
+        }
+        
+        // placement policy of the workers, and the cpu each one was pinned to
+        out.print(ex.placement + "," + CpuTopology.format(ex.cpus) + ",");
+        
+        // merged-experiment
+        //String mergedEx = ex.ratio.ins + "i-" + ex.ratio.del + "d-" + ex.maxkey;
+        //out.print("," + mergedEx);
+        
+        // garbage collection time and desired total elapsed time
+        final double gcElapsedTime = gcTimeMillis/1e3;
+        out.print(gcElapsedTime + ",");
+    
+        out.print(ex.throughput + ",");
+        
+        // throughput relative to the best JDK baseline on this workload (if one has run)
+        final double best = bestBaselineThroughput(ex);
+        out.print(best > 0 && !isBaseline(ex.alg) ? String.valueOf(ex.throughput / best) : "");
+
+        if (PRINT_FREEMEM) {
+            System.gc();
+            final long freemem = Runtime.getRuntime().freeMemory();
+            out.print("," + freemem + "," + (startFreemem - freemem) + "," + (nnodes > 0 ? ((startFreemem - freemem)/nnodes) : 0));
+        }
+        
+        out.println(); // finished line of output
+    }
+    
+    /**
+     * Closes the log of a durable tree, recovers its contents into a fresh
+     * tree (with all processors), and checks that the key sums match.
+     * Records the log statistics and recovery time in ex, then deletes the
+     * log directory.
+     */
+    private void checkRecovery(final DurableTree durable, final Experiment ex) {
+        try {
+            durable.close();
+            ex.walRecords = durable.getRecords();
+            ex.fsyncs = durable.getFsyncs();
+            ex.snapshots = durable.getSnapshots();
+            final BSTInterface recovered = createTree(ex.alg, ex.maxkey);
+            final long start = System.nanoTime();
+            DurableTree.recover(durable.getDirectory(), recovered, RAW_NUMBER_OF_PROCESSORS);
+            ex.recoveryTime = (System.nanoTime() - start) / 1e9;
+            if (recovered.getKeysum() != durable.getKeysum()) {
+                throw new RuntimeException("recoveredKeysum=" + recovered.getKeysum() + " does not match dsKeysum=" + durable.getKeysum());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        final File[] files = durable.getDirectory().listFiles();
+        if (files != null) for (File f : files) f.delete();
+        durable.getDirectory().delete();
+    }
+    
+    /**
+     * Checks that the history of a trial is linearizable (with all
+     * processors), and records its length and the time the check took in ex.
+     */
+    private void checkHistory(final History history, final java.util.BitSet initialKeys, final BSTInterface tree, final Experiment ex) {
+        final long start = System.nanoTime();
+        final String violation = history.check(initialKeys, tree, ex.maxkey, RAW_NUMBER_OF_PROCESSORS);
+        ex.historyCheckTime = (System.nanoTime() - start) / 1e9;
+        ex.historyOps = history.size();
+        if (violation != null) {
+            throw new RuntimeException("history of " + ex.historyOps + " operations is not linearizable: " + violation);
+        }
+    }
+    
+    /** returns the keys in [0, maxkey] that are in the (quiescent) tree. **/
+    private static java.util.BitSet presentKeys(final BSTInterface tree, final int maxkey) {
+        final java.util.BitSet keys = new java.util.BitSet(maxkey+1);
+        for (int key=0; key<=maxkey; key++) {
+            if (tree.contains(key)) keys.set(key);
+        }
+        return keys;
+    }
+    
+    /** serves tree on an ephemeral port of the loopback interface. **/
+    private TreeServer startServer(final BSTInterface tree) {
+        try {
+            return new TreeServer(tree, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), serverThreads);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+            return null;
+        }
+    }
+    
+    private static InetSocketAddress serverAddress(final TreeServer server) {
+        try {
+            return server.getAddress();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+    
+    /** returns the durability layer around tree (looking through a trace recorder, if any), or null. **/
+    static DurableTree durableTree(BSTInterface tree) {
+        if (tree instanceof OpTrace.Recorder) tree = ((OpTrace.Recorder) tree).getTree();
+        return tree instanceof DurableTree ? (DurableTree) tree : null;
+    }
+    
+    /** returns the data structure itself, looking through a trace recorder and durability layer. **/
+    static BSTInterface unwrap(BSTInterface tree) {
+        if (tree instanceof OpTrace.Recorder) tree = ((OpTrace.Recorder) tree).getTree();
+        if (tree instanceof DurableTree) tree = ((DurableTree) tree).getTree();
+        return tree;
+    }
+    
+    /** returns the tree (looking through any wrappers) if it can rebalance itself, or null. **/
+    static RebalancingTree rebalancingTree(BSTInterface tree) {
+        tree = unwrap(tree);
+        return tree instanceof RebalancingTree ? (RebalancingTree) tree : null;
+    }
+    
+    /**
+     * Measures the shape of the tree (looking through any wrappers) using
+     * all processors.  Returns null if the tree cannot report it.
+     */
+    static TreeShape measureShape(BSTInterface tree) {
+        tree = unwrap(tree);
+        if (!(tree instanceof MeasurableTree)) return null;
+        return ((MeasurableTree) tree).measureShape(RAW_NUMBER_OF_PROCESSORS);
+    }
+    
+    /**
+     * Jain's fairness index (sum x)^2 / (n * sum x^2), which is 1 when all
+     * threads performed the same number of operations and 1/n when a single
+     * thread performed all of them.
+     */
+    static double jainFairnessIndex(final int[] x) {
+        double sum = 0, sumOfSquares = 0;
+        for (int v : x) {
+            sum += v;
+            sumOfSquares += (double) v * v;
+        }
+        return sumOfSquares > 0 ? (sum*sum) / (x.length * sumOfSquares) : 1;
+    }
+    
+    /**
+     * Replays a recorded trace on a fresh tree: the preload keys are inserted
+     * first, then one thread per recorded segment replays its operations.
+     * The trial ends when every segment has been replayed.
+     */
+    protected void runReplay(
+            final PrintStream out,
+            final String alg,
+            final int trial,
+            final OpTrace.Reader trace,
+            final java.util.Random rng) {
+        
+        final BSTInterface tree = createTree(alg, trace.maxkey);
+        final long preloadKeysum = preload(tree, trace);
         
-            out.print(ex.throughput);
+        final int nthreads = trace.getThreadCount();
+        final Experiment ex = new Experiment(alg, nthreads, trace.maxkey, new Ratio(trace.ins, trace.del));
+        final CyclicBarrier start = new CyclicBarrier(nthreads+1);
+        final ArrayList<Worker> workers = new ArrayList<Worker>(nthreads);
+        for (int i=0;i<nthreads;i++) {
+            workers.add(new ReplayWorker(trace.thread(i), tree, start));
+        }
+        
+        System.gc();
+        final long gcTimeStart = totalGarbageCollectionTimeMillis();
+        for (Worker w : workers) w.start();
+        try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+        final long localStartTime = System.nanoTime();
+        try { for (Worker w : workers) w.join(); }
+        catch (InterruptedException e) { e.printStackTrace(); System.exit(-1); }
+        final long localEndTime = System.nanoTime();
+        final long gcTimeEnd = totalGarbageCollectionTimeMillis();
+        
+        long threadsKeysum = preloadKeysum;
+        for (Worker w : workers) threadsKeysum += w.getKeysum();
+        final long dsKeysum = tree.getKeysum();
+        if (dsKeysum != threadsKeysum) {
+            throw new RuntimeException("threadsKeysum=" + threadsKeysum + " does not match dsKeysum=" + dsKeysum);
+        }
+        printTrialResults(out, tree.getName() + "," + trial, "replay", workers,
+                (localEndTime - localStartTime)/1e9, gcTimeEnd-gcTimeStart, rng, ex, measureShape(tree));
+    }
     
-            if (PRINT_FREEMEM) {
-                System.gc();
-                final long freemem = Runtime.getRuntime().freeMemory();
-                out.print("," + freemem + "," + (startFreemem - freemem) + "," + (nnodes > 0 ? ((startFreemem - freemem)/nnodes) : 0));
+    /**
+     * Runs all phases of the phased workload back to back on one tree, and
+     * prints one row per phase.  While a phase runs, the main thread samples
+     * the total op count every slice (a tenth of the phase, at most 100ms);
+     * the recovery time of a phase is how long it took for the throughput of
+     * a slice to first reach 90% of the median slice throughput of the phase.
+     */
+    protected void runPhasedTrial(
+            final PrintStream out,
+            final String alg,
+            final int trial,
+            final java.util.Random rng) {
+        
+        final int maxkey = (int) switches.get("keyRange");
+        BSTInterface tree = createTree(alg, maxkey);
+        SizeKeysumPair pair = new SizeKeysumPair(0, 0);
+        if (prefill) pair = fillToSteadyState(rng, tree, ratio, maxkey, false);
+        
+        final List<PhasedWorkload.Phase> phases = phased.phases;
+        final int nphases = phases.size();
+        final int nworkers = phased.maxThreads();
+        final PhaseClock clock = new PhaseClock();
+        final CyclicBarrier start = new CyclicBarrier(nworkers+1);
+        final ArrayList<PhasedWorker> workers = new ArrayList<PhasedWorker>(nworkers);
+        for (int i=0;i<nworkers;i++) {
+            workers.add(new PhasedWorker(i, phased, clock, tree, start, maxkey, rng));
+        }
+        
+        System.gc();
+        for (PhasedWorker w : workers) w.start();
+        try { start.await(); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+        
+        final double[] elapsed = new double[nphases];
+        final long[] gcMillis = new long[nphases];
+        final long[] recoveryNanos = new long[nphases];
+        for (int p=0;p<nphases;p++) {
+            final long phaseNanos = (long) (phases.get(p).seconds * 1e9);
+            final long sliceNanos = Math.max(1000000, Math.min(100000000, phaseNanos / 10));
+            final ArrayList<Double> slices = new ArrayList<Double>();
+            final long gcStart = totalGarbageCollectionTimeMillis();
+            final long phaseStart = System.nanoTime();
+            clock.phase = p;
+            long lastTime = phaseStart, lastOps = totalOps(workers);
+            while (true) {
+                final long now = System.nanoTime();
+                final long remaining = phaseStart + phaseNanos - now;
+                if (remaining <= 0) break;
+                try { Thread.sleep(Math.max(1, Math.min(remaining, lastTime + sliceNanos - now) / 1000000)); }
+                catch (InterruptedException e) { e.printStackTrace(); System.exit(-1); }
+                final long t = System.nanoTime();
+                final long ops = totalOps(workers);
+                if (t - lastTime >= sliceNanos || t >= phaseStart + phaseNanos) {
+                    slices.add((ops - lastOps) / ((t - lastTime) / 1e9));
+                    lastTime = t;
+                    lastOps = ops;
+                }
             }
+            elapsed[p] = (System.nanoTime() - phaseStart) / 1e9;
+            gcMillis[p] = totalGarbageCollectionTimeMillis() - gcStart;
             
-            out.println(); // finished line of output
+            final ArrayList<Double> sorted = new ArrayList<Double>(slices);
+            java.util.Collections.sort(sorted);
+            final double target = sorted.isEmpty() ? 0 : 0.9 * sorted.get(sorted.size()/2);
+            recoveryNanos[p] = 0;
+            for (int i=0;i<slices.size();i++) {
+                if (slices.get(i) >= target) break;
+                recoveryNanos[p] += sliceNanos;
+            }
         }
-        return true;
+        clock.phase = nphases;
+        try { for (PhasedWorker w : workers) w.join(); }
+        catch (InterruptedException e) { e.printStackTrace(); System.exit(-1); }
+        
+        long threadsKeysum = pair.keysum;
+        for (PhasedWorker w : workers) threadsKeysum += w.getKeysum();
+        final long dsKeysum = tree.getKeysum();
+        if (dsKeysum != threadsKeysum) {
+            throw new RuntimeException("threadsKeysum=" + threadsKeysum + " does not match dsKeysum=" + dsKeysum);
+        }
+        
+        for (int p=0;p<nphases;p++) {
+            final PhasedWorkload.Phase phase = phases.get(p);
+            long nops = 0;
+            final LatencyHistogram latency = new LatencyHistogram();
+            for (PhasedWorker w : workers) {
+                nops += w.getPhaseOps(p);
+                latency.merge(w.latency[p]);
+            }
+            out.print(tree.getName() + "," + trial + "," + p + "," + phase.name + ",");
+            out.print(phase.nthreads + "," + nops + "," + maxkey + "," + phase.ratioString() + "," + phase.dist + ",");
+            out.print(elapsed[p] + "," + (long) (nops / elapsed[p]) + ",");
+            out.print(latency.getCount() + "," + latency.percentile(0.5) + "," + latency.percentile(0.99) + ",");
+            out.print(latency.percentile(0.999) + "," + latency.getMax() + ",");
+            out.print(recoveryNanos[p]/1e9 + "," + gcMillis[p]/1e3);
+            out.println();
+        }
+    }
+    
+    private static long totalOps(final List<? extends Worker> workers) {
+        long ops = 0;
+        for (Worker w : workers) ops += w.getOpCount(); // (racy reads, only used for progress sampling)
+        return ops;
+    }
+    
+    /**
+     * Inserts the (sorted) preload keys of a trace, taking medians first so
+     * the tree does not degenerate into a list.  Returns the sum of the keys.
+     */
+    private long preload(final BSTInterface tree, final OpTrace.Reader trace) {
+        final int[] keys = new int[trace.getPreloadCount()];
+        final OpTrace.Cursor cursor = trace.preload();
+        for (int i=0;cursor.next();i++) keys[i] = cursor.key();
+        
+        long keysum = 0;
+        final java.util.ArrayDeque<int[]> ranges = new java.util.ArrayDeque<int[]>();
+        if (keys.length > 0) ranges.add(new int[]{0, keys.length});
+        while (!ranges.isEmpty()) {
+            final int[] r = ranges.poll();
+            final int mid = (r[0] + r[1]) >>> 1;
+            if (tree.insert(keys[mid])) keysum += keys[mid];
+            if (r[0] < mid) ranges.add(new int[]{r[0], mid});
+            if (mid+1 < r[1]) ranges.add(new int[]{mid+1, r[1]});
+        }
+        return keysum;
+    }
+    
+    /**
+     * Returns the keys in [1, maxkey] that are currently in the tree, in
+     * ascending order.  Must be called without concurrent operations.
+     */
+    private static int[] snapshotKeys(final BSTInterface tree, final int maxkey) {
+        final int[] keys = new int[tree.size()];
+        int n = 0;
+        for (int key=1; key<=maxkey && n<keys.length; key++) {
+            if (tree.contains(key)) keys[n++] = key;
+        }
+        return n == keys.length ? keys : java.util.Arrays.copyOf(keys, n);
+    }
+    
+    /** returns the cpu time used by this process so far, in ns (or 0 if the JVM cannot tell). **/
+    private static long processCPUTime() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return 0;
     }
     
     private long totalGarbageCollectionTimeMillis() {
@@ -390,6 +1319,13 @@ public class Main {
     }
     
     protected enum ExperimentState { PENDING, RUNNING, STOPPED }
+    
+    // values of the "opStream" switch
+    static final int OPSTREAM_GEN = 0, OPSTREAM_PREGEN = 1, OPSTREAM_BOTH = 2;
+    
+    // values of the "-transport-" switch
+    static final int TRANSPORT_INPROC = 0, TRANSPORT_TCP = 1;
+    static final String[] TRANSPORTS = {"inproc", "tcp"};
 
     public final class Experiment {
         volatile ExperimentState state = ExperimentState.PENDING;
@@ -397,17 +1333,58 @@ public class Main {
         final String alg;
         final int nprocs, maxkey;
         final Ratio ratio;
+        final boolean pregenerated; // operations are drawn from per-thread OpStreams instead of a RandomGenerator
+        final int opStreamLength;
+        final int rebalance; // duty cycle of the background rebalancer in percent (0 for none)
+        final int durability; // DurableTree level (0 for none)
+        final int transport; // TRANSPORT_INPROC, or TRANSPORT_TCP to run the workers as clients of a TreeServer
+        final String dist; // KeyDistribution spec of the keys
+        final int cache; // lookup cache slots (0 for none)
+        final String placement; // CpuTopology policy for the worker threads
+        final int[] cpus; // of the workers under placement (null for none)
         int throughput; // exists to make access to this convenient so that we can decide whether we have finished warming up
+        long processCPUTime; // cpu time of the whole process during the last trial, in ns
+        long rebalanceCPUTime, rotations; // spent and performed by the rebalancer during the last trial
+        double avgDepth; // of the tree after the last trial
+        long walRecords, fsyncs; // written by the durability layer during the last trial
+        int snapshots;
+        double recoveryTime; // to rebuild the tree from its log after the last trial, in seconds
+        String purgeMode; // of the purger during the last trial (null if none)
+        long purgedKeys, purgedRanges; // removed by the purger during the last trial
+        LatencyHistogram latency; // of requests to the TreeServer during the last trial (null if in-process)
+        long historyOps; // recorded and checked during the last trial (0 if none)
+        double historyCheckTime; // in seconds
+        long cacheHits; // contains calls answered by the lookup cache during the last trial
 
         public Experiment(final String alg, final int nprocs, final int maxkey, final Ratio ratio) {
+            this(alg, nprocs, maxkey, ratio, false, 0, 0, 0, TRANSPORT_INPROC, "uniform", 0, "none");
+        }
+        public Experiment(final String alg, final int nprocs, final int maxkey, final Ratio ratio,
+                final boolean pregenerated, final int opStreamLength, final int rebalance, final int durability,
+                final int transport, final String dist, final int cache, final String placement) {
             this.alg = alg;
             this.nprocs = nprocs;
             this.maxkey = maxkey;
             this.ratio = ratio;
+            this.pregenerated = pregenerated;
+            this.opStreamLength = opStreamLength;
+            this.rebalance = rebalance;
+            this.durability = durability;
+            this.transport = transport;
+            this.dist = dist;
+            this.cache = cache;
+            this.placement = placement;
+            this.cpus = CpuTopology.get().place(placement, nprocs);
         }
         @Override
         public String toString() {
-            return alg + "-" + nprocs + "thr-" + maxkey + "keys-" + ratio;
+            return alg + "-" + nprocs + "thr-" + maxkey + "keys-" + ratio + (pregenerated ? "-pregen" : "")
+                    + (rebalance > 0 ? "-rebalance" + rebalance : "")
+                    + (durability > 0 ? "-" + DurableTree.levelName(durability) : "")
+                    + (transport != TRANSPORT_INPROC ? "-" + TRANSPORTS[transport] : "")
+                    + (!dist.equals("uniform") ? "-" + dist : "")
+                    + (cache > 0 ? "-cache" + cache + (cacheWays > 1 ? "x" + cacheWays : "") : "")
+                    + (!placement.equals("none") ? "-" + placement : "");
         }
     }
 
@@ -498,7 +1475,7 @@ public class Main {
         int numThreads = 0;    // number of threads to use for prefilling phase
         int numOperations = 0; // number of operations to perform per thread in each iteration (up to MAX_REPS iterations)
         
-        numThreads = Math.min(48, Runtime.getRuntime().availableProcessors() / 2);
+        numThreads = Math.min(48, NUMBER_OF_PROCESSORS); // one per physical core
         numOperations = 10 + maxkey/(2*numThreads);
 
         // we prefill over several iterations (up to MAX_REPS iterations).
@@ -539,12 +1516,97 @@ public class Main {
         return new SizeKeysumPair(treeSize, keysum);
     }
     
+    /** names accepted by the -alg- switch **/
+    static final String[] ALGORITHMS = {"BST", "LongMap", "SkipList", "CHMKeySet", "RWLockTreeSet", "StampedTreeSet"};
+    /** JDK reference points, which rows are normalized against **/
+    static final String[] BASELINES = {"SkipList", "CHMKeySet", "RWLockTreeSet", "StampedTreeSet"};
+    
+    /**
+     * Creates an empty instance of the named algorithm for keys in [1, maxkey].
+     */
+    protected BSTInterface createTree(final String alg, final int maxkey) {
+        return createTree(alg, maxkey, 0);
+    }
+    
+    /**
+     * Creates an empty instance of the named algorithm for keys in [1, maxkey],
+     * with a lookup cache of cacheSlots slots if it supports one.
+     */
+    protected BSTInterface createTree(final String alg, final int maxkey, final int cacheSlots) {
+        if (alg.equals("BST")) return new BST(cacheSlots, cacheWays);
+        if (alg.equals("LongMap")) return new LongMapAdapter(new LongLongMap(), maxkey, (int) switches.get("valueSize"));
+        if (alg.equals("SkipList")) return new SkipListSet();
+        if (alg.equals("CHMKeySet")) return new HashKeySet();
+        if (alg.equals("RWLockTreeSet")) return new RWLockTreeSet();
+        if (alg.equals("StampedTreeSet")) return new StampedTreeSet();
+        throw new RuntimeException("unknown algorithm " + alg);
+    }
+    
     protected ArrayList<Experiment> getExperiments() {
         final ArrayList<Experiment> exp = new ArrayList<Experiment>();
-        exp.add(new Experiment(alg, nthreads, (int) switches.get("keyRange"), ratio));
+        final int opStream = (int) switches.get("opStream");
+        final int opStreamLength = (int) switches.get("opStreamLength");
+        
+        // baselines run first, so the other rows can be normalized against them
+        final ArrayList<String> algs = new ArrayList<String>();
+        if (baselines) algs.addAll(java.util.Arrays.asList(BASELINES));
+        for (String a : alg.split(",")) if (!algs.contains(a)) algs.add(a);
+        
+        for (String a : algs) {
+            final boolean canRebalance = createTree(a, 1) instanceof RebalancingTree;
+            final boolean canCache = createTree(a, 1) instanceof CachingTree;
+            for (String dist : dists) {
+                for (String placement : placements) {
+                    for (int cache : cacheSizes) {
+                        if (cache > 0 && !canCache) continue;
+                        for (int duty : rebalanceDuties) {
+                            if (duty > 0 && !canRebalance) continue;
+                            for (int level : durabilityLevels) {
+                                for (int transport : transports) {
+                                    if (opStream != OPSTREAM_PREGEN) exp.add(new Experiment(a, nthreads, (int) switches.get("keyRange"), ratio, false, 0, duty, level, transport, dist, cache, placement));
+                                    if (opStream != OPSTREAM_GEN) exp.add(new Experiment(a, nthreads, (int) switches.get("keyRange"), ratio, true, opStreamLength, duty, level, transport, dist, cache, placement));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
         return exp;
     }
     
+    static boolean isBaseline(final String alg) {
+        return java.util.Arrays.asList(BASELINES).contains(alg);
+    }
+    
+    /** experiments with the same workload and thread count share a key. **/
+    static String workloadKey(final Experiment ex) {
+        return ex.nprocs + "thr-" + ex.maxkey + "keys-" + ex.ratio + (ex.pregenerated ? "-pregen" : "")
+                + (ex.durability > 0 ? "-" + DurableTree.levelName(ex.durability) : "")
+                + (ex.transport != TRANSPORT_INPROC ? "-" + TRANSPORTS[ex.transport] : "")
+                + (!ex.dist.equals("uniform") ? "-" + ex.dist : "")
+                + (!ex.placement.equals("none") ? "-" + ex.placement : "");
+    }
+    
+    /** experiments that differ only in their rebalance duty share a key. **/
+    static String unbalancedKey(final Experiment ex) {
+        return ex.alg + "-" + workloadKey(ex) + "-cache" + ex.cache;
+    }
+    
+    /** experiments that differ only in their lookup cache share a key. **/
+    static String uncachedKey(final Experiment ex) {
+        return ex.alg + "-" + workloadKey(ex) + "-rebalance" + ex.rebalance;
+    }
+    
+    /**
+     * Returns the best mean throughput of any baseline measured so far on
+     * the same workload and thread count as ex, or 0 if there is none.
+     */
+    double bestBaselineThroughput(final Experiment ex) {
+        final Double best = bestBaseline.get(workloadKey(ex));
+        return best == null ? 0 : best;
+    }
+    
     public void run(final PrintStream output) {
         // create output streams
         PrintStream out = output;
@@ -559,6 +1621,38 @@ public class Main {
         DualPrintStream stdout = null;
         try { stdout = new DualPrintStream(filename + "_stdout"); } catch (Exception e) { e.printStackTrace(); System.exit(-1); }
         
+        // phased workloads have their own output format, with one row per phase
+        if (phased != null) {
+            out.print("name"
+                    + ",trial"
+                    + ",phase"
+                    + ",phaseName"
+                    + ",nthreads"
+                    + ",threadops"
+                    + ",maxkey"
+                    + ",ratio"
+                    + ",dist"
+                    + ",time"
+                    + ",throughput"
+                    + ",latencySamples"
+                    + ",p50Latency"
+                    + ",p99Latency"
+                    + ",p999Latency"
+                    + ",maxLatency"
+                    + ",recoveryTime"
+                    + ",gcTime"
+                    );
+            out.println();
+            final java.util.Random rng = new java.util.Random((int) switches.get("seed"));
+            for (String a : alg.split(",")) {
+                for (int trial=0;trial<ntrials;++trial) {
+                    runPhasedTrial(out, a, trial, rng);
+                    System.out.println("phased " + a + " trial " + trial + " done");
+                }
+            }
+            return;
+        }
+        
         // print header
         out.print("name"
                 + ",trial"
@@ -566,22 +1660,88 @@ public class Main {
                 + ",threadops"
                 + ",maxkey"
                 + ",ratio"
+                + ",opstream"
+                + ",vthreadCarriers"
                 + ",seed"
                 + ",time"
+                + ",cpuTime"
+                + ",userTime"
+                + ",sysTime"
+                + ",cpuUtil"
+                + ",opsPerCpuSec"
+                + ",minThreadOps"
+                + ",medianThreadOps"
+                + ",maxThreadOps"
+                + ",jainFairness"
+                + ",nnodes"
+                + ",markedNodes"
+                + ",avgDepth"
+                + ",maxDepth"
+                + ",imbalance"
+                + ",depthHistogram"
+                + ",rebalance"
+                + ",rebalanceCpuTime"
+                + ",rotations"
+                + ",depthReduction"
+                + ",durability"
+                + ",walRecords"
+                + ",fsyncs"
+                + ",recordsPerFsync"
+                + ",snapshots"
+                + ",recoveryTime"
+                + ",purge"
+                + ",purgedKeys"
+                + ",purgedRanges"
+                + ",purgedKeysPerSec"
+                + ",transport"
+                + ",batch"
+                + ",pipeline"
+                + ",p50Latency"
+                + ",p99Latency"
+                + ",p999Latency"
+                + ",historyOps"
+                + ",checkTime"
+                + ",dist"
+                + ",cache"
+                + ",cacheHitRatio"
+                + ",cacheGain"
+                + ",placement"
+                + ",cpus"
                 + ",gcTime"
                 + ",throughput"
+                + ",relThroughput"
                 );
         out.println();
         
+        // replay a recorded trace instead of running random experiments
+        if (replayFile != null) {
+            final OpTrace.Reader trace;
+            try { trace = new OpTrace.Reader(new File(replayFile)); }
+            catch (IOException e) { e.printStackTrace(); System.exit(-1); return; }
+            System.out.println("replaying " + replayFile + ": " + trace.getThreadCount() + " threads, " + trace.getPreloadCount() + " preloaded keys");
+            final java.util.Random rng = new java.util.Random((int) switches.get("seed"));
+            for (String a : alg.split(",")) {
+                for (int trial=0;trial<ntrials;++trial) {
+                    runReplay(out, a, trial, trace, rng);
+                    System.out.println("replay " + a + " trial " + trial + " done");
+                }
+            }
+            return;
+        }
+        
         // retrieve list of experiments to perform (this is a method because subclasses can implement it differently)
         ArrayList<Experiment> exp = getExperiments();
 
+        // a forked child runs only one of the experiments (see ForkDriver)
+        final int onlyExperiment = (int) switches.get("experiment");
+        
         // preview experiments, and determine now many runs there will be in total
         for (Experiment ex : exp) {
             System.out.println(ex);
         }
         System.out.println(exp.size() + " experiments in total");
-        int numberOfRuns = exp.size() * ntrials;
+        final int recordingTrials = recordFile != null ? 1 : 0; // (an extra trial per experiment, not reported)
+        int numberOfRuns = (onlyExperiment >= 0 ? 1 : exp.size()) * (ntrials + recordingTrials);
 
         // start measuring time for the purpose of progress updates
         final long startTime = System.nanoTime();
@@ -595,17 +1755,58 @@ public class Main {
 
         // perform the experiment
         java.util.Random rng = new java.util.Random((int) switches.get("seed"));
-        for (Experiment ex : exp) {
+        for (int e=0;e<exp.size();++e) {
+            final Experiment ex = exp.get(e);
             int experimentSeed = rng.nextInt();
             java.util.Random experimentRng = new java.util.Random(experimentSeed);
+            if (onlyExperiment >= 0 && onlyExperiment != e) continue; // (after drawing the seed, so seeds match unforked runs)
 
-            for (int trial=0;trial<ntrials;++trial) {
-                BSTInterface tree = new BST();
+            long throughputSum = 0;
+            double depthSum = 0;
+            for (int trial=0;trial<ntrials+recordingTrials;++trial) {
+                final boolean recording = trial == ntrials;
+                BSTInterface tree = createTree(ex.alg, ex.maxkey, ex.cache);
                 SizeKeysumPair p = new SizeKeysumPair(0, 0);
                 if (prefill) p = fillToSteadyState(experimentRng, tree, ex.ratio, ex.maxkey, false);
-                if (!runTrial(out, false, trial+1 == ntrials, tree.getName() + "," + trial, p, experimentRng, tree, ex)) System.exit(-1);
+                
+                // log updates (after a first snapshot of the prefilled tree) if requested
+                // (in a fresh directory, so neither an earlier run that died before
+                // cleaning up nor a concurrent run can leave snapshots in it)
+                if (ex.durability > 0) {
+                    try {
+                        final File dir = Files.createTempDirectory(Files.createDirectories(Paths.get(walDir)), "bst-wal-" + e + "-" + trial + "-").toFile();
+                        tree = new DurableTree(tree, dir, ex.durability, ex.maxkey, snapshotMillis);
+                    } catch (IOException ioe) { ioe.printStackTrace(); System.exit(-1); }
+                }
+                
+                // record an extra trial of each experiment (as a trace file) if requested;
+                // the recorder slows every operation down, so its results are discarded
+                OpTrace.Recorder recorder = null;
+                int[] initialKeys = null;
+                if (recording) {
+                    initialKeys = snapshotKeys(tree, ex.maxkey);
+                    tree = recorder = new OpTrace.Recorder(tree);
+                }
+                
+                if (!runTrial(out, recording, trial+1 == ntrials, tree.getName() + "," + trial, p, experimentRng, tree, ex)) System.exit(-1);
+                
+                if (recorder != null) {
+                    final String traceFile = exp.size() > 1 ? recordFile + "." + e : recordFile;
+                    try { recorder.write(new File(traceFile), initialKeys, ex.maxkey, ex.ratio.ins, ex.ratio.del); }
+                    catch (IOException ioe) { ioe.printStackTrace(); System.exit(-1); }
+                    System.out.println("recorded trial " + trial + " to " + traceFile);
+                }
                 progress(stdout, tree, ++nCompleted, trial, tree.getName(), startTime, numberOfRuns, ex);
+                if (recording) continue;
+                throughputSum += ex.throughput;
+                depthSum += ex.avgDepth;
             }
+            if (isBaseline(ex.alg)) {
+                final double mean = throughputSum / (double) ntrials;
+                if (mean > bestBaselineThroughput(ex)) bestBaseline.put(workloadKey(ex), mean);
+            }
+            if (ex.rebalance == 0) unbalancedDepth.put(unbalancedKey(ex), depthSum / ntrials);
+            if (ex.cache == 0) uncachedThroughput.put(uncachedKey(ex), throughputSum / (double) ntrials);
         }
     }
 
@@ -636,21 +1837,79 @@ public class Main {
             System.out.println("\t-s###     to set the random seed (32-bit signed int; default is " + Globals.DEFAULT_SEED + ")");
             System.out.println("\t-prefill  to prefill structures to steady state with random operations");
             System.out.println("\t-file-### to specify an output file to store results in");
+            System.out.println("\t-record-### to record the operations of the last trial of each experiment to a binary trace file");
+            System.out.println("\t-replay-### to replay a recorded trace file (once per trial) instead of running random experiments");
+            System.out.println("\t-phases-SPEC  run a time-phased workload in each trial (SPEC is a file or name:sec:threads:ins:del:dist,...;");
+            System.out.println("\t              dist is uniform, zipfTHETA or seq; #THREADS and SECONDS_PER_TRIAL are ignored)");
+            System.out.println("The following switches run workers as virtual threads (Java 21+):");
+            System.out.println("\t-vthreadsC        run the #THREADS workers as virtual threads on C carrier threads");
+            System.out.println("\t-yieldN           workers yield after every N operations (default: never)");
+            System.out.println("The following switches run each experiment in a freshly forked child JVM:");
+            System.out.println("\t-fork             enable forked runs (results of all children are merged into one CSV)");
+            System.out.println("\t-gc-A,B,...       garbage collectors to compare, one set of runs each (parallel, g1, z, serial, shenandoah, default)");
+            System.out.println("\t-heap-SIZE        heap size for children, used for -Xms and -Xmx (e.g., 4G)");
+            System.out.println("\t-jvmflags-\"...\"  extra space-separated JVM flags for children");
             System.out.println("The following switches determine which operations are run (leftover % becomes search):");
             System.out.println("\t-ins%     to specify what % (0 to 100) of ops should be inserts");
             System.out.println("\t-del%     to specify what % (0 to 100) of ops should be deletes");
             System.out.println("\t-keysM    random keys will be uniformly from range [0,M) (default 1000000)");
+            System.out.println("\t-alg-A,B,... to choose the data structures: " + String.join(", ", ALGORITHMS) + " (default BST)");
+            System.out.println("\t-rebalance-P,Q,... to run each experiment with a background rebalancer at duty cycles P%, Q%, ...");
+            System.out.println("\t              (0 for none; only for trees that can rebalance, such as BST)");
+            System.out.println("\t-baselines   to also run the JDK baselines " + String.join(", ", BASELINES) + " and report throughput relative to the best");
+            System.out.println("\t-valuesizeN  payload size in bytes for map algorithms (a multiple of 8, default 8)");
+            System.out.println("\t-durability-L,M,... run each experiment with a write-ahead log at levels L, M, ... (none, async, group)");
+            System.out.println("\t-waldir-DIR  directory for logs and snapshots (default: the temporary directory)");
+            System.out.println("\t-snapshotN   take a snapshot of durable trees every N ms (default: only at the start)");
+            System.out.println("\t-purgeW      run a purger thread that removes random ranges of W keys (with removeRange if possible)");
+            System.out.println("\t-purgeloop   make the purger remove ranges one key at a time");
+            System.out.println("\t-transport-A,B,... run each experiment in process (inproc) and/or with the workers as clients of a local TCP server (tcp)");
+            System.out.println("\t-serverthreadsN  event-loop threads of the TCP server (default: number of processors)");
+            System.out.println("\t-batchN      operations per TCP request (default 16)");
+            System.out.println("\t-pipelineN   TCP requests each client keeps in flight (default 4)");
+            System.out.println("\t-dist-A,B,... run each experiment with keys drawn from distributions A, B, ... (uniform, zipfTHETA, seq)");
+            System.out.println("\t-cache-S,T,... run each experiment with a lookup cache of S, T, ... slots in front of contains");
+            System.out.println("\t              (0 for none; only for trees that have one, such as BST)");
+            System.out.println("\t-cacheways2  make the lookup cache 2-way set associative (default: direct-mapped)");
+            System.out.println("\t-place-A,B,... run each experiment with the workers pinned to cpus by policies A, B, ...");
+            System.out.println("\t              (none, compact, cores, sockets, nosmt; needs Linux and taskset)");
+            System.out.println("\t-historyN    record up to N operations per (in-process) worker and check that each trial is linearizable");
+            System.out.println("The following switches determine how operations are generated:");
+            System.out.println("\t-opstream-gen     draw each operation from the random generator inside the timed loop (default)");
+            System.out.println("\t-opstream-pregen  pre-generate per-thread operation arrays before the trial starts");
+            System.out.println("\t-opstream-both    run every experiment in both modes");
+            System.out.println("\t-opstreamlenN     length of each pre-generated array, rounded up to a power of two (default " + Globals.DEFAULT_OPSTREAM_LENGTH + ")");
             System.exit(-1);
         }
         int nthreads = 0;
         int ntrials = 0;
         double nseconds = 0;
         String filename = null;
+        String recordFile = null;
+        String replayFile = null;
+        boolean fork = false;
+        List<String> gcs = java.util.Collections.singletonList("default");
+        String heap = null;
+        List<String> jvmFlags = new ArrayList<String>();
+        final ArrayList<String> childArgs = new ArrayList<String>(); // arguments forwarded to forked children
         boolean prefill = false;
 
         SwitchMap switches = new SwitchMap();
         switches.put("seed", (double) Globals.DEFAULT_SEED);
         switches.put("keyRange", (double) Globals.DEFAULT_KEYRANGE);
+        switches.put("opStream", (double) OPSTREAM_GEN);
+        switches.put("opStreamLength", (double) Globals.DEFAULT_OPSTREAM_LENGTH);
+        switches.put("experiment", -1.);
+        switches.put("valueSize", 8.);
+        String alg = "BST";
+        PhasedWorkload phased = null;
+        int[] rebalanceDuties = {0};
+        int[] durabilityLevels = {0};
+        int[] transports = {TRANSPORT_INPROC};
+        String[] dists = {"uniform"};
+        int[] cacheSizes = {0};
+        String[] placements = {"none"};
+        String walDir = null;
         
         try {
             nthreads = Integer.parseInt(args[0]);
@@ -676,6 +1935,12 @@ public class Main {
         int totalOpPercent = 0;
 
         for (int i=0;i<args.length;i++) {
+            if (args[i].equals("-fork") || args[i].startsWith("-gc-") || args[i].startsWith("-heap-")
+                    || args[i].startsWith("-jvmflags-") || args[i].startsWith("-file-")) {
+                // handled by the parent in a forked run
+            } else {
+                childArgs.add(args[i]);
+            }
             if (args[i].startsWith("-")) {
                 if (args[i].matches("-seed[0-9]+")) {
                     try {
@@ -719,6 +1984,163 @@ public class Main {
                         System.out.println("The key range must be a 32-bit integer.");
                         System.exit(-1);
                     }
+                } else if (args[i].equals("-opstream-gen")) {
+                    switches.put("opStream", (double) OPSTREAM_GEN);
+                } else if (args[i].equals("-opstream-pregen")) {
+                    switches.put("opStream", (double) OPSTREAM_PREGEN);
+                } else if (args[i].equals("-opstream-both")) {
+                    switches.put("opStream", (double) OPSTREAM_BOTH);
+                } else if (args[i].matches("-opstreamlen[0-9]+")) {
+                    try {
+                        final int len = Integer.parseInt(args[i].substring("-opstreamlen".length()));
+                        if (len < 1 || len > (1<<30)) {
+                            System.out.println("The op stream length must be in [1, 2^30]");
+                            System.exit(-1);
+                        }
+                        switches.put("opStreamLength", (double) (Integer.bitCount(len) == 1 ? len : Integer.highestOneBit(len) << 1));
+                    } catch (NumberFormatException ex) {
+                        System.out.println("The op stream length must be a 32-bit integer.");
+                        System.exit(-1);
+                    }
+                } else if (args[i].matches("-vthreads[0-9]+")) {
+                    switches.put("vthreadCarriers", (double) Integer.parseInt(args[i].substring("-vthreads".length())));
+                    if (switches.get("vthreadCarriers") < 1) {
+                        System.out.println("Need at least one carrier thread");
+                        System.exit(-1);
+                    }
+                    if (!VirtualThreads.isSupported()) {
+                        System.out.println("Virtual threads are not supported by this JVM (need Java 21 or newer)");
+                        System.exit(-1);
+                    }
+                } else if (args[i].matches("-yield[0-9]+")) {
+                    switches.put("yieldEvery", (double) Integer.parseInt(args[i].substring("-yield".length())));
+                } else if (args[i].startsWith("-alg-")) {
+                    alg = args[i].substring("-alg-".length());
+                    for (String a : alg.split(",")) {
+                        if (!java.util.Arrays.asList(ALGORITHMS).contains(a)) {
+                            System.out.println("Unknown algorithm \"" + a + "\", must be one of: " + String.join(", ", ALGORITHMS));
+                            System.exit(-1);
+                        }
+                    }
+                } else if (args[i].startsWith("-rebalance-")) {
+                    final String[] duties = args[i].substring("-rebalance-".length()).split(",");
+                    rebalanceDuties = new int[duties.length];
+                    for (int j=0;j<duties.length;j++) {
+                        try { rebalanceDuties[j] = Integer.parseInt(duties[j]); }
+                        catch (NumberFormatException e) { rebalanceDuties[j] = -1; }
+                        if (rebalanceDuties[j] < 0 || rebalanceDuties[j] > 100) {
+                            System.out.println("Rebalancer duty cycle \"" + duties[j] + "\" must be a percentage from 0 to 100");
+                            System.exit(-1);
+                        }
+                    }
+                } else if (args[i].startsWith("-durability-")) {
+                    final String[] levels = args[i].substring("-durability-".length()).split(",");
+                    durabilityLevels = new int[levels.length];
+                    for (int j=0;j<levels.length;j++) {
+                        durabilityLevels[j] = DurableTree.parseLevel(levels[j]);
+                        if (durabilityLevels[j] < 0) {
+                            System.out.println("Unknown durability level \"" + levels[j] + "\", must be one of: none, async, group");
+                            System.exit(-1);
+                        }
+                    }
+                } else if (args[i].startsWith("-transport-")) {
+                    final String[] names = args[i].substring("-transport-".length()).split(",");
+                    transports = new int[names.length];
+                    for (int j=0;j<names.length;j++) {
+                        transports[j] = java.util.Arrays.asList(TRANSPORTS).indexOf(names[j]);
+                        if (transports[j] < 0) {
+                            System.out.println("Unknown transport \"" + names[j] + "\", must be one of: " + String.join(", ", TRANSPORTS));
+                            System.exit(-1);
+                        }
+                    }
+                } else if (args[i].matches("-serverthreads[0-9]+")) {
+                    switches.put("serverThreads", (double) Integer.parseInt(args[i].substring("-serverthreads".length())));
+                    if (switches.get("serverThreads") < 1) {
+                        System.out.println("The server needs at least one thread");
+                        System.exit(-1);
+                    }
+                } else if (args[i].matches("-batch[0-9]+")) {
+                    switches.put("batchSize", (double) Integer.parseInt(args[i].substring("-batch".length())));
+                    if (switches.get("batchSize") < 1 || switches.get("batchSize") > TreeServer.MAX_BATCH) {
+                        System.out.println("The batch size must be in [1, " + TreeServer.MAX_BATCH + "]");
+                        System.exit(-1);
+                    }
+                } else if (args[i].matches("-pipeline[0-9]+")) {
+                    switches.put("pipelineDepth", (double) Integer.parseInt(args[i].substring("-pipeline".length())));
+                    if (switches.get("pipelineDepth") < 1) {
+                        System.out.println("The pipeline depth must be at least 1");
+                        System.exit(-1);
+                    }
+                } else if (args[i].startsWith("-dist-")) {
+                    dists = args[i].substring("-dist-".length()).split(",");
+                    for (String d : dists) {
+                        if (!KeyDistribution.isValid(d)) {
+                            System.out.println("Unknown key distribution \"" + d + "\", must be uniform, seq or zipfTHETA with 0 < THETA < 1");
+                            System.exit(-1);
+                        }
+                    }
+                } else if (args[i].startsWith("-cache-")) {
+                    final String[] sizes = args[i].substring("-cache-".length()).split(",");
+                    cacheSizes = new int[sizes.length];
+                    for (int j=0;j<sizes.length;j++) {
+                        try { cacheSizes[j] = Integer.parseInt(sizes[j]); }
+                        catch (NumberFormatException e) { cacheSizes[j] = -1; }
+                        if (cacheSizes[j] < 0) {
+                            System.out.println("Lookup cache size \"" + sizes[j] + "\" must be a number of slots (0 for none)");
+                            System.exit(-1);
+                        }
+                    }
+                } else if (args[i].startsWith("-place-")) {
+                    placements = args[i].substring("-place-".length()).split(",");
+                    for (String p : placements) {
+                        if (!CpuTopology.isPolicy(p)) {
+                            System.out.println("Unknown placement policy \"" + p + "\", must be one of " + java.util.Arrays.toString(CpuTopology.POLICIES));
+                            System.exit(-1);
+                        }
+                    }
+                } else if (args[i].matches("-cacheways[12]")) {
+                    switches.put("cacheWays", (double) Integer.parseInt(args[i].substring("-cacheways".length())));
+                } else if (args[i].matches("-history[0-9]+")) {
+                    switches.put("historyCapacity", (double) Integer.parseInt(args[i].substring("-history".length())));
+                } else if (args[i].startsWith("-waldir-")) {
+                    walDir = args[i].substring("-waldir-".length());
+                } else if (args[i].matches("-snapshot[0-9]+")) {
+                    switches.put("snapshotMillis", (double) Long.parseLong(args[i].substring("-snapshot".length())));
+                } else if (args[i].startsWith("-phases-")) {
+                    try {
+                        phased = PhasedWorkload.parse(args[i].substring("-phases-".length()));
+                    } catch (Exception ex) {
+                        System.out.println("Invalid phase specification: " + ex.getMessage());
+                        System.exit(-1);
+                    }
+                } else if (args[i].matches("-purge[0-9]+")) {
+                    switches.put("purgeWidth", (double) Integer.parseInt(args[i].substring("-purge".length())));
+                } else if (args[i].equals("-purgeloop")) {
+                    switches.put("purgeLoop", 1.);
+                } else if (args[i].equals("-baselines")) {
+                    switches.put("baselines", 1.);
+                } else if (args[i].matches("-valuesize[0-9]+")) {
+                    switches.put("valueSize", (double) Integer.parseInt(args[i].substring("-valuesize".length())));
+                    if (switches.get("valueSize") < 8 || switches.get("valueSize") % 8 != 0) {
+                        System.out.println("The value size must be a positive multiple of 8 bytes");
+                        System.exit(-1);
+                    }
+                } else if (args[i].equals("-fork")) {
+                    fork = true;
+                } else if (args[i].startsWith("-gc-")) {
+                    gcs = ForkDriver.splitList(args[i].substring("-gc-".length()), ",");
+                    try { for (String gc : gcs) ForkDriver.gcFlag(gc); }
+                    catch (RuntimeException ex) { System.out.println(ex.getMessage()); System.exit(-1); }
+                } else if (args[i].matches("-heap-[0-9]+[kKmMgG]?")) {
+                    heap = args[i].substring("-heap-".length());
+                } else if (args[i].startsWith("-jvmflags-")) {
+                    jvmFlags = ForkDriver.splitList(args[i].substring("-jvmflags-".length()), "\\s+");
+                } else if (args[i].matches("-experiment[0-9]+")) {
+                    switches.put("experiment", (double) Integer.parseInt(args[i].substring("-experiment".length())));
+                } else if (args[i].startsWith("-record-")) {
+                    recordFile = args[i].substring("-record-".length());
+                } else if (args[i].startsWith("-replay-")) {
+                    replayFile = args[i].substring("-replay-".length());
                 } else if (args[i].startsWith("-file-")) {
                     filename = args[i].substring("-file-".length());
                 } else if (args[i].matches("-prefill")) {
@@ -734,10 +2156,79 @@ public class Main {
             System.out.println("Total percentage over all operations cannot exceed 100");
             System.exit(-1);
         }
+        if (switches.get("opStream") != OPSTREAM_GEN && switches.get("keyRange") > OpStream.MAX_KEY) {
+            System.out.println("Pre-generated op streams require a key range of at most " + OpStream.MAX_KEY);
+            System.exit(-1);
+        }
+        if (switches.get("historyCapacity") > 0 && switches.get("purgeWidth") > 0) {
+            System.out.println("-history cannot be combined with -purge (the purger's removals are not recorded)");
+            System.exit(-1);
+        }
+        if (switches.get("valueSize") > 8
+                && LongMapAdapter.slabWords((int) switches.get("keyRange"), (int) switches.get("valueSize")) > LongMapAdapter.MAX_SLAB_WORDS) {
+            System.out.println("Payloads of " + (int) switches.get("valueSize") + " bytes for " + (int) switches.get("keyRange")
+                    + " keys do not fit in one slab of at most " + LongMapAdapter.MAX_SLAB_WORDS + " longs");
+            System.exit(-1);
+        }
+        if (switches.get("historyCapacity") > 0 && nthreads > History.MAX_PENDING) {
+            System.out.println("-history can check at most " + History.MAX_PENDING + " threads");
+            System.exit(-1);
+        }
+        for (int transport : transports) {
+            if (transport == TRANSPORT_TCP && switches.get("keyRange") > OpStream.MAX_KEY) {
+                System.out.println("The TCP transport requires a key range of at most " + OpStream.MAX_KEY);
+                System.exit(-1);
+            }
+        }
+        for (String p : placements) {
+            if (p.equals("none")) continue;
+            if (switches.get("vthreadCarriers") > 0) {
+                System.out.println("-place cannot be combined with -vthreads (virtual threads move between carriers)");
+                System.exit(-1);
+            }
+            if (!CpuTopology.canPin()) {
+                System.out.println("Thread placement needs Linux with taskset installed");
+                System.exit(-1);
+            }
+        }
 
-        (new Main(nthreads, ntrials, nseconds, filename,
+        final Main main = new Main(nthreads, ntrials, nseconds, filename,
                 new Ratio(switches.get("ratio-ins") / 100., switches.get("ratio-del") / 100.),
-                switches, prefill)).run(output);
+                switches, prefill);
+        main.alg = alg;
+        main.phased = phased;
+        main.rebalanceDuties = rebalanceDuties;
+        main.durabilityLevels = durabilityLevels;
+        main.transports = transports;
+        if (switches.get("serverThreads") > 0) main.serverThreads = (int) switches.get("serverThreads");
+        if (switches.get("batchSize") > 0) main.batchSize = (int) switches.get("batchSize");
+        if (switches.get("pipelineDepth") > 0) main.pipelineDepth = (int) switches.get("pipelineDepth");
+        main.historyCapacity = (int) switches.get("historyCapacity");
+        main.dists = dists;
+        main.cacheSizes = cacheSizes;
+        main.placements = placements;
+        if (switches.get("cacheWays") > 0) main.cacheWays = (int) switches.get("cacheWays");
+        if (walDir != null) main.walDir = walDir;
+        main.snapshotMillis = (long) switches.get("snapshotMillis");
+        main.baselines = switches.get("baselines") != 0;
+        main.recordFile = recordFile;
+        main.replayFile = replayFile;
+        main.vthreadCarriers = (int) switches.get("vthreadCarriers");
+        main.yieldEvery = (int) switches.get("yieldEvery");
+        if (main.vthreadCarriers > 0) VirtualThreads.configureCarriers(main.vthreadCarriers);
+        if (fork) {
+            PrintStream out = output;
+            if (out == null) {
+                if (filename == null) out = System.out;
+                else try { out = new PrintStream(new File(filename)); }
+                catch (Exception e) { e.printStackTrace(); System.exit(-1); }
+            }
+            final List<Experiment> experiments = (replayFile != null || phased != null)
+                    ? java.util.Collections.<Experiment>singletonList(null) : main.getExperiments();
+            new ForkDriver(childArgs, gcs, heap, jvmFlags, experiments).run(out);
+        } else {
+            main.run(output);
+        }
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,260 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Binary trace of the operations performed on a BSTInterface.
+ *
+ * A trace consists of a header, a preload segment holding the keys that were
+ * in the tree when recording started (in ascending order), and one segment
+ * per recording thread holding that thread's operations in program order.
+ * Every operation is stored as the varint (LEB128) encoding of
+ * (zigzag(key - previousKey) << 2) | op, so a segment costs 1-3 bytes per
+ * operation for typical key ranges.
+ *
+ * File layout (big-endian):
+ *   int magic, int version, int maxkey, double ins, double del, int nsegments,
+ *   then nsegments+1 entries of (long offset, long nbytes, int nops), the
+ *   first of which describes the preload segment, followed by segment data.
+ */
+public final class OpTrace {
+    public static final int OP_INS = 0, OP_DEL = 1, OP_FIND = 2;
+    static final int MAGIC = 0x42535454; // "BSTT"
+    static final int VERSION = 1;
+    static final int SEGMENT_ENTRY_BYTES = 8 + 8 + 4;
+    static final int HEADER_BYTES = 4 + 4 + 4 + 8 + 8 + 4;
+
+    private OpTrace() {}
+
+    /**
+     * A growable, delta-encoded sequence of operations written by one thread.
+     */
+    static final class Segment {
+        byte[] buf = new byte[1<<16];
+        int nbytes;
+        int nops;
+        int prevKey;
+
+        void append(final int op, final int key) {
+            if (nbytes + 10 > buf.length) buf = java.util.Arrays.copyOf(buf, buf.length*2);
+            final int delta = key - prevKey;
+            long v = ((long) ((delta << 1) ^ (delta >> 31)) & 0xffffffffL) << 2 | op;
+            while ((v & ~0x7fL) != 0) {
+                buf[nbytes++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[nbytes++] = (byte) v;
+            prevKey = key;
+            ++nops;
+        }
+    }
+
+    /**
+     * Wraps a tree and records every operation performed through it, in a
+     * separate segment for each calling thread.  Can be placed in front of a
+     * tree in production code as well as in the harness.
+     */
+    public static final class Recorder implements BSTInterface {
+        private final BSTInterface tree;
+        private final ArrayList<Segment> segments = new ArrayList<Segment>();
+        private final ThreadLocal<Segment> local = new ThreadLocal<Segment>() {
+            @Override
+            protected Segment initialValue() {
+                final Segment seg = new Segment();
+                synchronized (segments) { segments.add(seg); }
+                return seg;
+            }
+        };
+
+        public Recorder(final BSTInterface tree) {
+            this.tree = tree;
+        }
+
+        public BSTInterface getTree() {
+            return tree;
+        }
+
+        @Override
+        public boolean contains(final int key) {
+            local.get().append(OP_FIND, key);
+            return tree.contains(key);
+        }
+
+        @Override
+        public boolean insert(final int key) {
+            local.get().append(OP_INS, key);
+            return tree.insert(key);
+        }
+
+        @Override
+        public boolean remove(final int key) {
+            local.get().append(OP_DEL, key);
+            return tree.remove(key);
+        }
+
+        @Override
+        public int size() { return tree.size(); }
+        @Override
+        public String getName() { return tree.getName(); }
+        @Override
+        public long getKeysum() { return tree.getKeysum(); }
+
+        /**
+         * Writes the recorded segments to file, preceded by a preload segment
+         * built from initialKeys (which must be sorted in ascending order).
+         * Must be called once all recording threads have finished.
+         */
+        public void write(final File file, final int[] initialKeys, final int maxkey,
+                final double ins, final double del) throws IOException {
+            final Segment preload = new Segment();
+            for (int key : initialKeys) preload.append(OP_INS, key);
+            final ArrayList<Segment> all = new ArrayList<Segment>();
+            all.add(preload);
+            synchronized (segments) { all.addAll(segments); }
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + all.size()*SEGMENT_ENTRY_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(maxkey).putDouble(ins).putDouble(del).putInt(all.size()-1);
+            long offset = header.capacity();
+            for (Segment seg : all) {
+                header.putLong(offset).putLong(seg.nbytes).putInt(seg.nops);
+                offset += seg.nbytes;
+            }
+            header.flip();
+
+            final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(0);
+                final FileChannel ch = raf.getChannel();
+                while (header.hasRemaining()) ch.write(header);
+                for (Segment seg : all) {
+                    final ByteBuffer data = ByteBuffer.wrap(seg.buf, 0, seg.nbytes);
+                    while (data.hasRemaining()) ch.write(data);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * Sequential decoder over one memory-mapped segment.  Decodes straight
+     * from the mapping, so replay never copies operations onto the heap.
+     */
+    public static final class Cursor {
+        private final ByteBuffer buf;
+        private int prevKey;
+        private int op, key;
+
+        Cursor(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        /** advances to the next operation; returns false at the end of the segment. **/
+        public boolean next() {
+            if (!buf.hasRemaining()) return false;
+            long v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buf.get();
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            op = (int) (v & 3);
+            final int zigzag = (int) (v >>> 2);
+            key = prevKey + ((zigzag >>> 1) ^ -(zigzag & 1));
+            prevKey = key;
+            return true;
+        }
+
+        public int op() { return op; }
+        public int key() { return key; }
+    }
+
+    /**
+     * A trace file opened for replay.  Each segment is mapped separately, so
+     * segments (not the whole file) are limited to 2 GiB.
+     */
+    public static final class Reader {
+        public final int maxkey;
+        public final double ins, del;
+        private final MappedByteBuffer[] segments; // [0] is the preload segment
+        private final int[] nops;
+
+        public Reader(final File file) throws IOException {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final FileChannel ch = raf.getChannel();
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(ch, header, 0);
+                if (header.getInt() != MAGIC) throw new IOException("not a trace file: " + file);
+                final int version = header.getInt();
+                if (version != VERSION) throw new IOException("unsupported trace version " + version);
+                maxkey = header.getInt();
+                ins = header.getDouble();
+                del = header.getDouble();
+                final int nsegments = header.getInt() + 1;
+
+                final ByteBuffer entries = ByteBuffer.allocate(nsegments*SEGMENT_ENTRY_BYTES);
+                readFully(ch, entries, HEADER_BYTES);
+                segments = new MappedByteBuffer[nsegments];
+                nops = new int[nsegments];
+                for (int i=0;i<nsegments;i++) {
+                    final long offset = entries.getLong();
+                    final long nbytes = entries.getLong();
+                    nops[i] = entries.getInt();
+                    segments[i] = ch.map(FileChannel.MapMode.READ_ONLY, offset, nbytes);
+                }
+            } finally {
+                raf.close(); // mappings stay valid after the channel is closed
+            }
+        }
+
+        private static void readFully(final FileChannel ch, final ByteBuffer buf, long position) throws IOException {
+            while (buf.hasRemaining()) {
+                final int n = ch.read(buf, position);
+                if (n < 0) throw new IOException("truncated trace file");
+                position += n;
+            }
+            buf.flip();
+        }
+
+        /** number of thread segments (not counting the preload segment). **/
+        public int getThreadCount() { return segments.length-1; }
+        public int getPreloadCount() { return nops[0]; }
+        public int getOpCount(final int thread) { return nops[thread+1]; }
+
+        public Cursor preload() {
+            return new Cursor(segments[0].duplicate());
+        }
+
+        public Cursor thread(final int thread) {
+            return new Cursor(segments[thread+1].duplicate());
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A sequence of timed phases that run back to back within one trial.  Each
+ * phase has its own duration, thread count, operation mix and key
+ * distribution (see KeyDistribution).
+ *
+ * A specification is either a file with one phase per line, or the same
+ * phases inline, separated by commas, with the fields of a phase separated
+ * by colons:
+ *
+ *     # name     seconds  threads  ins%  del%  distribution
+ *     bulkload   10       8        100   0     seq
+ *     daytime    30       16       5     5     zipf0.99
+ *     purge      10       4        0     100   uniform
+ *
+ *     bulkload:10:8:100:0:seq,daytime:30:16:5:5:zipf0.99,purge:10:4:0:100:uniform
+ */
+public final class PhasedWorkload {
+
+    public static final class Phase {
+        public final String name;
+        public final double seconds;
+        public final int nthreads;
+        public final double ins, del; // fractions in [0,1]
+        public final String dist;
+
+        public Phase(final String name, final double seconds, final int nthreads,
+                final double ins, final double del, final String dist) {
+            if (seconds <= 0) throw new RuntimeException("phase " + name + ": duration must be > 0");
+            if (nthreads <= 0) throw new RuntimeException("phase " + name + ": thread count must be > 0");
+            if (ins < 0 || del < 0 || ins+del > 1) throw new RuntimeException("phase " + name + ": invalid ratio");
+            if (!KeyDistribution.isValid(dist)) throw new RuntimeException("phase " + name + ": invalid key distribution " + dist);
+            this.name = name;
+            this.seconds = seconds;
+            this.nthreads = nthreads;
+            this.ins = ins;
+            this.del = del;
+            this.dist = dist;
+        }
+
+        public String ratioString() {
+            return "" + (int)(100*ins) + "i-" + (int)(100*del) + "d";
+        }
+    }
+
+    public final List<Phase> phases;
+
+    private PhasedWorkload(final List<Phase> phases) {
+        if (phases.isEmpty()) throw new RuntimeException("a phased workload needs at least one phase");
+        this.phases = phases;
+    }
+
+    public int maxThreads() {
+        int max = 0;
+        for (Phase p : phases) max = Math.max(max, p.nthreads);
+        return max;
+    }
+
+    /** parses a specification file, or an inline specification if spec is not a file. **/
+    public static PhasedWorkload parse(final String spec) throws IOException {
+        final ArrayList<String> lines = new ArrayList<String>();
+        final File file = new File(spec);
+        if (file.isFile()) {
+            final BufferedReader in = new BufferedReader(new FileReader(file));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) lines.add(line);
+            } finally {
+                in.close();
+            }
+        } else {
+            for (String phase : spec.split(",")) lines.add(phase.replace(':', ' '));
+        }
+
+        final ArrayList<Phase> phases = new ArrayList<Phase>();
+        for (String line : lines) {
+            final int comment = line.indexOf('#');
+            if (comment >= 0) line = line.substring(0, comment);
+            line = line.trim();
+            if (line.length() == 0) continue;
+            final String[] f = line.split("\\s+");
+            if (f.length != 6) throw new RuntimeException("phase \"" + line + "\" must have 6 fields: name seconds threads ins% del% distribution");
+            try {
+                phases.add(new Phase(f[0], Double.parseDouble(f[1]), Integer.parseInt(f[2]),
+                        Double.parseDouble(f[3]) / 100., Double.parseDouble(f[4]) / 100., f[5]));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("phase \"" + line + "\" has a non-numeric field");
+            }
+        }
+        return new PhasedWorkload(phases);
+    }
+}
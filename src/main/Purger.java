@@ -0,0 +1,82 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A retention job that runs next to the workers, repeatedly removing every
+ * key in a random range of width keys.  It uses removeRange if the tree
+ * supports it (and perKey is false), and otherwise removes the keys one at
+ * a time.  Trees wrapped in a trace recorder are always purged key by key,
+ * so that the removals are recorded.
+ */
+public final class Purger extends Thread {
+    private final BSTInterface tree;
+    private final int width, maxkey;
+    private final boolean range; // use removeRange
+    private final Random rng;
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+    private long purgedKeys;
+    private long keysum; // change in the tree's key sum (so, negative)
+    private int ranges;
+
+    public Purger(final BSTInterface tree, final int width, final int maxkey, final boolean perKey, final java.util.Random rng) {
+        this.tree = tree;
+        this.width = width;
+        this.maxkey = maxkey;
+        this.range = !perKey && tree instanceof RangeRemovableTree;
+        this.rng = new Random(rng.nextInt());
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        while (!stop.get()) {
+            final int lo = rng.nextNatural(Math.max(1, maxkey - width + 1)) + 1;
+            final int hi = lo + width - 1;
+            if (range) {
+                final RangeRemovableTree.Removed removed = ((RangeRemovableTree) tree).removeRange(lo, hi);
+                purgedKeys += removed.count;
+                keysum -= removed.keysum;
+            } else {
+                for (int key=lo; key<=hi; key++) {
+                    if (tree.remove(key)) {
+                        ++purgedKeys;
+                        keysum -= key;
+                    }
+                }
+            }
+            ++ranges;
+        }
+    }
+
+    /** stops purging (after the current range) and waits for the thread to exit. **/
+    public void finish() {
+        stop.set(true);
+        try { join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+    }
+
+    /** describes how ranges are purged, such as range1024 or loop1024. **/
+    public String getMode() { return (range ? "range" : "loop") + width; }
+    public long getPurgedKeys() { return purgedKeys; }
+    public long getKeysum() { return keysum; }
+    public int getRanges() { return ranges; }
+}
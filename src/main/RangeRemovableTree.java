@@ -0,0 +1,39 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+/**
+ * Implemented by trees that can remove a whole range of keys at once.
+ */
+public interface RangeRemovableTree {
+    // Removes every key in [lo, hi] and returns how many keys were removed
+    // and their sum.  Safe to run concurrently with other operations, but
+    // not atomic: keys inserted into the range while it runs may survive.
+    public Removed removeRange(final int lo, final int hi);
+
+    public static final class Removed {
+        public final int count;
+        public final long keysum;
+        public Removed(final int count, final long keysum) {
+            this.count = count;
+            this.keysum = keysum;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A maintenance thread that runs rebalancing passes over a tree while the
+ * workers use it.  The duty cycle (in percent) sets its intensity: after a
+ * pass that took t, it sleeps for t * (100 - duty) / duty, so at 100 it
+ * rebalances continuously.  The cpu time it used is available once it has
+ * been stopped.
+ */
+public final class Rebalancer extends Thread {
+    private final RebalancingTree tree;
+    private final int duty;
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+    private long cpuTime;
+    private long rotations;
+    private int passes;
+
+    public Rebalancer(final RebalancingTree tree, final int duty) {
+        if (duty <= 0 || duty > 100) throw new IllegalArgumentException("duty cycle must be in 1..100");
+        this.tree = tree;
+        this.duty = duty;
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        final long cpuStart = bean.getCurrentThreadCpuTime();
+        while (!stop.get()) {
+            final long passStart = System.nanoTime();
+            rotations += tree.rebalance(stop);
+            ++passes;
+            final long idle = (System.nanoTime() - passStart) * (100 - duty) / duty;
+            final long idleEnd = System.nanoTime() + idle;
+            for (long left = idle; left > 0 && !stop.get(); left = idleEnd - System.nanoTime()) {
+                LockSupport.parkNanos(Math.min(left, 10000000));
+            }
+        }
+        cpuTime = bean.getCurrentThreadCpuTime() - cpuStart;
+    }
+
+    /** stops rebalancing (finishing early if a pass is underway) and waits for the thread to exit. **/
+    public void finish() {
+        stop.set(true);
+        try { join(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+    }
+
+    public long getCPUTime() { return cpuTime; }
+    public long getRotations() { return rotations; }
+    public int getPasses() { return passes; }
+}
@@ -0,0 +1,33 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Implemented by trees that can rebalance themselves concurrently with
+ * other operations (see Rebalancer).
+ */
+public interface RebalancingTree {
+    // Makes one pass over the tree, rotating subtrees that are out of
+    // balance, and returns the number of rotations.  Stops early once stop
+    // is set.  Only one thread may rebalance a tree at a time.
+    public int rebalance(final AtomicBoolean stop);
+}
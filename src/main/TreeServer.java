@@ -0,0 +1,267 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves a tree over TCP with a compact binary protocol.
+ *
+ * A request is a batch of operations: int n, followed by n ints that each
+ * hold an operation in the top two bits and a key in the other 30 (like
+ * OpStream: 0 insert, 1 remove, 2 contains).  The response is int n
+ * followed by n result bytes (1 for true).  Clients may pipeline: send
+ * further requests before the responses arrive.  The responses on a
+ * connection come back in request order.  All ints are big-endian.
+ *
+ * An acceptor thread hands new connections to nthreads event loops in turn.
+ * Each event loop has its own selector, and runs the operations of every
+ * complete request it reads directly on the tree (so the tree must be
+ * thread safe).  While a connection has responses that could not be sent,
+ * its event loop stops reading it, so a client that sends faster than it
+ * receives is held back by TCP flow control instead of growing the server's
+ * output buffer.
+ */
+public final class TreeServer {
+    public static final int MAX_BATCH = 1<<16;
+    static final int OP_SHIFT = 30;
+    static final int KEY_MASK = (1<<OP_SHIFT)-1;
+    static final int OP_INS = 0, OP_DEL = 1, OP_FIND = 2;
+
+    private final BSTInterface tree;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    public TreeServer(final BSTInterface tree, final InetSocketAddress address, final int nthreads) throws IOException {
+        this.tree = tree;
+        server = ServerSocketChannel.open();
+        server.bind(address);
+        loops = new EventLoop[nthreads];
+        for (int i=0;i<nthreads;i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+        acceptor = new Thread("server-acceptor") {
+            @Override
+            public void run() { acceptLoop(); }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress getAddress() throws IOException {
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (!closed) {
+            try {
+                final SocketChannel ch = server.accept();
+                ch.configureBlocking(false);
+                ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[next++ % loops.length].add(ch);
+            } catch (IOException e) {
+                if (!closed) e.printStackTrace();
+            }
+        }
+    }
+
+    /** stops accepting, closes all connections and waits for the event loops to exit. **/
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        for (EventLoop loop : loops) loop.selector.wakeup();
+        try {
+            acceptor.join();
+            for (EventLoop loop : loops) loop.join();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final class EventLoop extends Thread {
+        final Selector selector;
+        final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+        EventLoop(final int id) throws IOException {
+            super("server-loop-" + id);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void add(final SocketChannel ch) {
+            pending.add(ch);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = pending.poll()) != null) {
+                        final SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+                        key.attach(new Connection(ch, key));
+                    }
+                    final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        final SelectionKey key = it.next();
+                        it.remove();
+                        final Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) conn.read();
+                            if (key.isValid() && key.isWritable()) conn.flush();
+                        } catch (IOException e) {
+                            conn.close(); // (the client went away)
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) ((Connection) key.attachment()).close();
+                try { selector.close(); } catch (IOException e) { e.printStackTrace(); }
+            }
+        }
+    }
+
+    private final class Connection {
+        final SocketChannel ch;
+        final SelectionKey key;
+        final ByteBuffer in = ByteBuffer.allocate(4 + 4*MAX_BATCH); // (always holds a whole request)
+        ByteBuffer out = ByteBuffer.allocate(1<<12);
+
+        Connection(final SocketChannel ch, final SelectionKey key) {
+            this.ch = ch;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            if (ch.read(in) < 0) {
+                close();
+                return;
+            }
+            in.flip();
+            while (in.remaining() >= 4) {
+                final int n = in.getInt(in.position());
+                if (n < 0 || n > MAX_BATCH) throw new IOException("bad batch size " + n);
+                if (in.remaining() < 4 + 4*n) break;
+                in.getInt();
+                if (out.remaining() < 4 + n) {
+                    final ByteBuffer bigger = ByteBuffer.allocate(Math.max(2*out.capacity(), out.position() + 4 + n));
+                    out.flip();
+                    bigger.put(out);
+                    out = bigger;
+                }
+                out.putInt(n);
+                for (int i=0;i<n;i++) {
+                    final int op = in.getInt();
+                    final int k = op & KEY_MASK;
+                    final boolean result;
+                    switch (op >>> OP_SHIFT) {
+                        case OP_INS: result = tree.insert(k); break;
+                        case OP_DEL: result = tree.remove(k); break;
+                        default: result = tree.contains(k); break;
+                    }
+                    out.put((byte) (result ? 1 : 0));
+                }
+            }
+            in.compact();
+            flush();
+        }
+
+        /** sends what it can of out, and reads more requests only once all of it is sent. **/
+        void flush() throws IOException {
+            out.flip();
+            ch.write(out);
+            out.compact();
+            key.interestOps(out.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        void close() {
+            key.cancel();
+            try { ch.close(); } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    /**
+     * A blocking client connection.  Pipelining is up to the caller, which
+     * can send several requests before receiving their responses (as long
+     * as it receives them eventually: the server stops reading requests
+     * while it has responses the client has not taken).
+     */
+    public static final class Client {
+        private final SocketChannel ch;
+        private final ByteBuffer request = ByteBuffer.allocateDirect(4 + 4*MAX_BATCH);
+        private final ByteBuffer response = ByteBuffer.allocateDirect(4 + MAX_BATCH);
+
+        public Client(final InetSocketAddress address) throws IOException {
+            ch = SocketChannel.open(address);
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+
+        /** sends the first n operations of ops (encoded like OpStream) as one request. **/
+        public void send(final int[] ops, final int n) throws IOException {
+            if (n > MAX_BATCH) throw new IllegalArgumentException("batches are limited to " + MAX_BATCH + " operations");
+            request.clear();
+            request.putInt(n);
+            for (int i=0;i<n;i++) request.putInt(ops[i]);
+            request.flip();
+            while (request.hasRemaining()) ch.write(request);
+        }
+
+        /** receives the response to the oldest outstanding request into results, and returns its size. **/
+        public int receive(final boolean[] results) throws IOException {
+            response.clear();
+            response.limit(4);
+            readFully();
+            final int n = response.getInt(0);
+            response.clear();
+            response.limit(n);
+            readFully();
+            for (int i=0;i<n;i++) results[i] = response.get(i) != 0;
+            return n;
+        }
+
+        private void readFully() throws IOException {
+            while (response.hasRemaining()) {
+                if (ch.read(response) < 0) throw new IOException("server closed the connection");
+            }
+        }
+
+        public void close() throws IOException {
+            ch.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+/**
+ * Shape statistics for a tree, accumulated one node at a time.  Partial
+ * shapes computed by different threads (over disjoint subtrees) are combined
+ * with merge().  Depths count edges from the root, so the root has depth 0.
+ */
+public final class TreeShape {
+    private long nodes;        // reachable nodes, including marked ones
+    private long markedNodes;  // reachable nodes that are logically deleted
+    private long sumDepth;
+    private int maxDepth = -1;
+    private long[] histogram = new long[32]; // histogram[d] = number of nodes at depth d
+
+    public void visit(final int depth, final boolean marked) {
+        ++nodes;
+        if (marked) ++markedNodes;
+        sumDepth += depth;
+        if (depth > maxDepth) maxDepth = depth;
+        if (depth >= histogram.length) histogram = java.util.Arrays.copyOf(histogram, Math.max(depth+1, 2*histogram.length));
+        ++histogram[depth];
+    }
+
+    public void merge(final TreeShape other) {
+        nodes += other.nodes;
+        markedNodes += other.markedNodes;
+        sumDepth += other.sumDepth;
+        if (other.maxDepth > maxDepth) maxDepth = other.maxDepth;
+        if (other.histogram.length > histogram.length) histogram = java.util.Arrays.copyOf(histogram, other.histogram.length);
+        for (int d=0;d<other.histogram.length;d++) histogram[d] += other.histogram[d];
+    }
+
+    public long getNodes() { return nodes; }
+    public long getMarkedNodes() { return markedNodes; }
+    public int getMaxDepth() { return Math.max(maxDepth, 0); }
+
+    public double getAverageDepth() {
+        return nodes > 0 ? sumDepth / (double) nodes : 0;
+    }
+
+    /** average depth of a perfectly balanced (complete) tree with the same number of nodes. **/
+    public static double idealAverageDepth(final long n) {
+        if (n <= 0) return 0;
+        long remaining = n, levelSize = 1, sum = 0;
+        for (int d=0; remaining > 0; d++, levelSize *= 2) {
+            final long atLevel = Math.min(levelSize, remaining);
+            sum += atLevel * d;
+            remaining -= atLevel;
+        }
+        return sum / (double) n;
+    }
+
+    /** average depth relative to that of a perfectly balanced tree (>= 1, or 0 for an empty tree). **/
+    public double getImbalance() {
+        if (nodes == 0) return 0;
+        final double ideal = idealAverageDepth(nodes);
+        return ideal > 0 ? getAverageDepth() / ideal : 1;
+    }
+
+    /** the depth histogram as semicolon-separated counts for depths 0..maxDepth. **/
+    public String histogramString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int d=0;d<=maxDepth;d++) {
+            if (d > 0) sb.append(';');
+            sb.append(histogram[d]);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Java test harness for throughput experiments on concurrent data structures.
+ * Copyright (C) 2012 Trevor Brown
+ * Contact (tabrown [at] cs [dot] toronto [dot edu]) with any questions or comments.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package main;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates virtual threads through reflection, so the harness still compiles
+ * and runs (without this mode) on JVMs older than Java 21.
+ */
+public final class VirtualThreads {
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+    static {
+        Method ofVirtual = null, unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            // not supported by this JVM
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private VirtualThreads() {}
+
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null && UNSTARTED != null;
+    }
+
+    /**
+     * Sets the number of carrier (platform) threads that run virtual threads.
+     * Only takes effect if called before the first virtual thread is created.
+     */
+    public static void configureCarriers(final int ncarriers) {
+        System.setProperty("jdk.virtualThreadScheduler.parallelism", String.valueOf(ncarriers));
+        System.setProperty("jdk.virtualThreadScheduler.maxPoolSize", String.valueOf(ncarriers));
+    }
+
+    /** returns an unstarted virtual thread that runs task. **/
+    public static Thread unstarted(final Runnable task) {
+        try {
+            return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+        } catch (Exception e) {
+            throw new RuntimeException("could not create a virtual thread", e);
+        }
+    }
+}